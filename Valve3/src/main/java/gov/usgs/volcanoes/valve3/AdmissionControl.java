@@ -0,0 +1,204 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how many components of one plotter class are plotted or exported
+ * at once, so a burst of heavy plots (large hypocenter maps, day long
+ * waveforms) can't take all heap and CPU. Requests over the limit wait in a
+ * bounded queue for a limited time; beyond that they are refused with a
+ * {@link BusyException}. Limits per action are kept by the {@link Dispatcher}.
+ *
+ * Configuration in valve3.config: admission.limit, admission.queue and
+ * admission.wait (ms) apply to every plotter class, admission.[class].limit,
+ * admission.[class].queue and admission.[class].wait override them for the
+ * class with that simple name, e.g. admission.HypocenterPlotter.limit.
+ */
+public class AdmissionControl
+{
+	public static final int DEFAULT_LIMIT = 8;
+	public static final int DEFAULT_QUEUE = 16;
+	public static final int DEFAULT_WAIT = 10000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+
+	private final ConfigFile config;
+	private final int retryAfter;
+	private final int limit;
+	private final int queue;
+	private final int wait;
+	private final Map<String, Limiter> limiters;
+
+	/**
+	 * Constructor
+	 * @param config valve3 configuration
+	 * @param retryAfter seconds refused clients are told to wait
+	 */
+	public AdmissionControl(ConfigFile config, int retryAfter)
+	{
+		this.config = config;
+		this.retryAfter = retryAfter;
+		limit = StringUtils.stringToInt(config.getString("admission.limit"), DEFAULT_LIMIT);
+		queue = StringUtils.stringToInt(config.getString("admission.queue"), DEFAULT_QUEUE);
+		wait = StringUtils.stringToInt(config.getString("admission.wait"), DEFAULT_WAIT);
+		limiters = new ConcurrentHashMap<String, Limiter>();
+		LOGGER.info("admission.limit: {}, queue: {}, wait: {}", limit, queue, wait);
+	}
+
+	/**
+	 * Wait for a permit to run a plotter
+	 * @param plotter plotter to run
+	 * @return permit, to release when the plotter is done
+	 * @throws BusyException if the queue is full or the wait timed out
+	 * @throws Valve3Exception if interrupted while waiting
+	 */
+	public Permit acquire(Plotter plotter) throws Valve3Exception
+	{
+		String name = plotter.getClass().getSimpleName();
+		Limiter limiter = limiters.get(name);
+		if (limiter == null)
+		{
+			synchronized (limiters)
+			{
+				limiter = limiters.get(name);
+				if (limiter == null)
+				{
+					limiter = newLimiter(name);
+					limiters.put(name, limiter);
+				}
+			}
+		}
+		return limiter.acquire();
+	}
+
+	/**
+	 * Add limiter metrics to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		for (Map.Entry<String, Limiter> e : limiters.entrySet())
+		{
+			String prefix = "admission." + e.getKey();
+			Limiter l = e.getValue();
+			status.put(prefix + ".active", l.active.get());
+			status.put(prefix + ".queued", l.waiting.get());
+			status.put(prefix + ".admitted", l.admitted.get());
+			status.put(prefix + ".rejected", l.rejected.get());
+		}
+	}
+
+	private Limiter newLimiter(String name)
+	{
+		String prefix = "admission." + name;
+		int l = StringUtils.stringToInt(config.getString(prefix + ".limit"), limit);
+		int q = StringUtils.stringToInt(config.getString(prefix + ".queue"), queue);
+		int w = StringUtils.stringToInt(config.getString(prefix + ".wait"), wait);
+		LOGGER.info("{}.limit: {}, queue: {}, wait: {}", prefix, l, q, w);
+		return new Limiter(name, l, Math.max(0, q), w);
+	}
+
+	/**
+	 * Permission to run one plotter, must be released
+	 */
+	public static class Permit
+	{
+		private final Limiter limiter;
+		private boolean released;
+
+		Permit(Limiter limiter)
+		{
+			this.limiter = limiter;
+		}
+
+		/**
+		 * Give back permit; releasing more than once has no effect
+		 */
+		public void release()
+		{
+			if (released || limiter == null)
+				return;
+			released = true;
+			limiter.active.decrementAndGet();
+			limiter.permits.release();
+		}
+	}
+
+	/**
+	 * Permits and wait queue of one plotter class
+	 */
+	private class Limiter
+	{
+		final String name;
+		final Semaphore permits;
+		final int maxWaiting;
+		final long maxWait;
+		final AtomicInteger active;
+		final AtomicInteger waiting;
+		final AtomicLong admitted;
+		final AtomicLong rejected;
+
+		Limiter(String name, int limit, int maxWaiting, long maxWait)
+		{
+			this.name = name;
+			// no limit
+			permits = (limit > 0) ? new Semaphore(limit, true) : null;
+			this.maxWaiting = maxWaiting;
+			this.maxWait = maxWait;
+			active = new AtomicInteger();
+			waiting = new AtomicInteger();
+			admitted = new AtomicLong();
+			rejected = new AtomicLong();
+		}
+
+		Permit acquire() throws Valve3Exception
+		{
+			admitted.incrementAndGet();
+			if (permits == null)
+				return new Permit(null);
+			if (!permits.tryAcquire())
+			{
+				if (waiting.incrementAndGet() > maxWaiting)
+				{
+					waiting.decrementAndGet();
+					return reject();
+				}
+				try
+				{
+					if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS))
+						return reject();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					admitted.decrementAndGet();
+					throw new Valve3Exception("Interrupted waiting for " + name);
+				}
+				finally
+				{
+					waiting.decrementAndGet();
+				}
+			}
+			active.incrementAndGet();
+			return new Permit(this);
+		}
+
+		private Permit reject() throws BusyException
+		{
+			admitted.decrementAndGet();
+			rejected.incrementAndGet();
+			throw new BusyException("Server busy, too many " + name + " requests", retryAfter);
+		}
+	}
+}
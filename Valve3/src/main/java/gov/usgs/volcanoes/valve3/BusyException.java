@@ -0,0 +1,31 @@
+package gov.usgs.volcanoes.valve3;
+
+/**
+ * Thrown when a request is refused because too many like it are running;
+ * handlers answer it with a {@link gov.usgs.volcanoes.valve3.result.BusyMessage}.
+ */
+public class BusyException extends Valve3Exception
+{
+	private static final long serialVersionUID = 1L;
+	private final int retryAfter;
+
+	/**
+	 * Constructor
+	 * @param m error message
+	 * @param retryAfter seconds after which the client may retry
+	 */
+	public BusyException(String m, int retryAfter)
+	{
+		super(m);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Yield time after which the client may retry
+	 * @return time in seconds
+	 */
+	public int getRetryAfter()
+	{
+		return retryAfter;
+	}
+}
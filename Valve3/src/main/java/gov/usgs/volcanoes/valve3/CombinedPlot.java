@@ -187,36 +187,28 @@ public class CombinedPlot extends Plot {
 	}
 
 	/**
-	 * Combine two matrix renderers
+	 * Combine two matrix renderers. Data is only collected here, it is
+	 * merged once for all renderers by {@link #mergeData}.
 	 * @param matrixRenderer MatrixRenderer to merge in
 	 * @param rendererDataset RendererDataset to merge in
 	 */
 	private void combineRenderers(MatrixRenderer matrixRenderer, RendererDataset rendererDataset) {
 		setBoundaries(matrixRenderer, rendererDataset);
-		// Merge data
-		DoubleMatrix2D data = null;
-		if (matrixRenderer.getOffset() == 1) {
-			// Shift to free column 1 for ranks
-			data = new DenseDoubleMatrix2D(matrixRenderer.getData().rows(),	matrixRenderer.getData().columns() + 1);
-			for (int row = 0; row < matrixRenderer.getData().rows(); row++) {
-				for (int column = 0; column < matrixRenderer.getData().columns(); column++) {
-					if (column == 0) {
-						data.set(row, column, matrixRenderer.getData().get(row,	column));
-					} else {
-						data.set(row, column + 1, matrixRenderer.getData().get(row, column));
-					}
-				}
-			}
-		} else {
-			data = matrixRenderer.getData();
+		DoubleMatrix2D data = matrixRenderer.getData();
+		// without rank column (offset 1) data columns start at 1
+		int firstColumn = (matrixRenderer.getOffset() == 1) ? 1 : 2;
+		int dataColumns = 0;
+		if (data != null) {
+			dataColumns = data.columns() - firstColumn;
+			rendererDataset.parts.add(new DataPart(data, firstColumn));
+			rendererDataset.dataColumns += dataColumns;
 		}
-		rendererDataset.combinedData = mergeData(rendererDataset.combinedData, data);
 		
 		// Merge line renderers
-		rendererDataset.lineRenderers = mergeLineRenderers(rendererDataset.lineRenderers, matrixRenderer.getLineRenderers(), data.columns() - 2);
+		rendererDataset.lineRenderers = mergeLineRenderers(rendererDataset.lineRenderers, matrixRenderer.getLineRenderers(), dataColumns);
 
 		// Merge point renderers
-		rendererDataset.pointRenderers = mergePointRenderers(rendererDataset.pointRenderers, (DataPointRenderer[]) matrixRenderer.getPointRenderers(), data.columns() - 2);
+		rendererDataset.pointRenderers = mergePointRenderers(rendererDataset.pointRenderers, (DataPointRenderer[]) matrixRenderer.getPointRenderers(), dataColumns);
 		
 		rendererDataset.visible = mergeVisible(rendererDataset.visible, matrixRenderer.getVisible());
 		
@@ -265,50 +257,82 @@ public class CombinedPlot extends Plot {
 	}
 
 	/**
-	 * Merge two data matrix according MatrixRenderers data storing rules
-	 * @param matrix DoubleMatrix2D to merge with
-	 * @param matrixToAdd DoubleMatrix2D to add
-	 * @return merged result
+	 * Merge data matrices according MatrixRenderers data storing rules: time,
+	 * rank, then the data columns of each matrix in turn, cells of other
+	 * matrices' rows set to fillValue. Matrices are sorted by time, so they
+	 * are merged in one pass into a matrix allocated once; with the few
+	 * components of a plot the earliest row is found by a linear scan.
+	 * @param parts data matrices to merge
+	 * @param dataColumns total count of data columns
+	 * @return merged result, sorted by time
 	 */
-	private DoubleMatrix2D mergeData(DoubleMatrix2D matrix,
-			DoubleMatrix2D matrixToAdd) {
-		if (matrix == null) {
-			return matrixToAdd;
-		} else if (matrixToAdd == null) {
-			return matrix;
-		} else {
-			logger.info("Result size: {}x{}", (matrix.rows() + matrixToAdd.rows()),
-					(matrix.columns() + matrixToAdd.columns() - 2));
-			DoubleMatrix2D result = new DenseDoubleMatrix2D(matrix.rows()
-					+ matrixToAdd.rows(), matrix.columns()
-					+ matrixToAdd.columns() - 2);
-
-			for (int row = 0; row < matrix.rows(); row++) {
-				for (int column = 0; column < result.columns(); column++) {
-					if (column < matrix.columns())
-						result.set(row, column, matrix.get(row, column));
-					else
-						result.set(row, column, fillValue);
-				}
-			}
-			for (int row = 0; row < matrixToAdd.rows(); row++) {
-				for (int column = 0; column < result.columns(); column++) {
-					if (column <= 1) {
-						// fill time and rank
-						result.set(row + matrix.rows(), column, matrixToAdd.get(row, column));
-					} else if (column < matrix.columns()) {
-						result.set(row + matrix.rows(), column, fillValue);
-					} else {
-						// logger.info("Setting cell: " +
-						// (row+matrix.rows()) +"x" + (column) +
-						// ", got from cell " + row + "x" +
-						// (column-matrix.columns()+2));
-						result.set(row + matrix.rows(), column, matrixToAdd.get(row, column - matrix.columns() + 2));
+	private DoubleMatrix2D mergeData(List<DataPart> parts, int dataColumns) {
+		int k = parts.size();
+		if (k == 1 && parts.get(0).firstColumn == 2) {
+			return sorted(parts.get(0).data);
+		}
+		DoubleMatrix2D[] data = new DoubleMatrix2D[k];
+		int[] base = new int[k];
+		int[] pos = new int[k];
+		int rows = 0;
+		int column = 2;
+		for (int i = 0; i < k; i++) {
+			DataPart part = parts.get(i);
+			data[i] = sorted(part.data);
+			base[i] = column - part.firstColumn;
+			column += part.data.columns() - part.firstColumn;
+			rows += data[i].rows();
+		}
+		logger.info("Result size: {}x{}", rows, dataColumns + 2);
+		DoubleMatrix2D result = new DenseDoubleMatrix2D(rows, dataColumns + 2);
+		int columns = result.columns();
+		
+		for (int row = 0; row < rows; row++) {
+			int next = -1;
+			double t = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < k; i++) {
+				if (pos[i] < data[i].rows()) {
+					double ti = data[i].getQuick(pos[i], 0);
+					if (next < 0 || ti < t) {
+						next = i;
+						t = ti;
 					}
 				}
 			}
-			return result.viewSorted(0);
+			DoubleMatrix2D m = data[next];
+			int r = pos[next]++;
+			int first = parts.get(next).firstColumn;
+			int from = base[next] + first;
+			int to = base[next] + m.columns();
+			result.setQuick(row, 0, t);
+			if (first == 2) {
+				result.setQuick(row, 1, m.getQuick(r, 1));
+			}
+			for (int c = 2; c < from; c++) {
+				result.setQuick(row, c, fillValue);
+			}
+			for (int c = from; c < to; c++) {
+				result.setQuick(row, c, m.getQuick(r, c - base[next]));
+			}
+			for (int c = to; c < columns; c++) {
+				result.setQuick(row, c, fillValue);
+			}
 		}
+		return result;
+	}
+	
+	/**
+	 * Yield matrix sorted by time, itself if it already is
+	 * @param matrix data matrix
+	 * @return sorted matrix or sorted view of it
+	 */
+	private static DoubleMatrix2D sorted(DoubleMatrix2D matrix) {
+		for (int row = 1; row < matrix.rows(); row++) {
+			if (matrix.getQuick(row, 0) < matrix.getQuick(row - 1, 0)) {
+				return matrix.viewSorted(0);
+			}
+		}
+		return matrix;
 	}
 	
 	private ShapeRenderer[] setColors(ShapeRenderer[] srs){
@@ -460,7 +484,8 @@ public class CombinedPlot extends Plot {
 	 * @param rendererDataset dataset
 	 */
 	private MatrixRenderer createRenderer(RendererDataset rendererDataset) {
-		MatrixRenderer renderer = new MatrixRenderer(rendererDataset.combinedData.viewSorted(0), true);
+		MatrixRenderer renderer = new MatrixRenderer(mergeData(rendererDataset.parts, rendererDataset.dataColumns), true);
+		rendererDataset.parts.clear();
 		renderer.setLineRenderers(rendererDataset.lineRenderers);
 		for (DataPointRenderer pointRenderer : rendererDataset.pointRenderers) {
 			if (pointRenderer != null) {
@@ -499,7 +524,8 @@ public class CombinedPlot extends Plot {
 		ShapeRenderer[] lineRenderers = null;
 		DataPointRenderer[] pointRenderers = null;
 		boolean[] visible = null;
-		DoubleMatrix2D combinedData = null;
+		List<DataPart> parts = new ArrayList<DataPart>();
+		int dataColumns = 0;
 
 		double minY = Double.MAX_VALUE;
 		double maxY = Double.MIN_VALUE;
@@ -508,4 +534,17 @@ public class CombinedPlot extends Plot {
 			this.type = type;
 		}
 	}
+
+	/**
+	 * Data matrix of one combined renderer
+	 */
+	static class DataPart {
+		final DoubleMatrix2D data;
+		final int firstColumn;
+
+		DataPart(DoubleMatrix2D data, int firstColumn) {
+			this.data = data;
+			this.firstColumn = firstColumn;
+		}
+	}
 }
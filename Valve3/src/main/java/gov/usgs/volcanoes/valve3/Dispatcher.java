@@ -0,0 +1,212 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.data.DataHandler.DaemonThreadFactory;
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded worker pools the {@link Valve3Servlet} runs requests on, so slow
+ * exports can't take all container threads and hold up cheap menu calls.
+ * Requests are assigned to a pool by action: "plot", "rawData" and "data"
+ * have their own pools, every other action (menus, status...) shares the
+ * "menu" pool. Each pool has a number of threads, a bounded wait queue and
+ * a time limit for handling a request. Requests of the "rawData" pool are
+ * bulk work, see {@link gov.usgs.volcanoes.valve3.data.RequestPriority}.
+ *
+ * Configuration in valve3.config: dispatch.[pool].threads,
+ * dispatch.[pool].queue and dispatch.[pool].timeout (ms); refused clients
+ * are told to retry after dispatch.retryAfter seconds.
+ */
+public class Dispatcher
+{
+	public static final int DEFAULT_RETRY_AFTER = 5;
+	private static final Logger LOGGER = LoggerFactory.getLogger(Dispatcher.class);
+	private static final String DEFAULT_POOL = "menu";
+	private static final String BULK_POOL = "rawData";
+	// pool name, threads, queue length, timeout
+	private static final Object[][] DEFAULTS = {
+		{ "plot", 16, 200, 120000 },
+		{ "rawData", 4, 20, 900000 },
+		{ "data", 8, 100, 60000 },
+		{ DEFAULT_POOL, 4, 100, 30000 } };
+
+	private final Map<String, Pool> pools;
+	private final ScheduledExecutorService timer;
+	private final int retryAfter;
+
+	/**
+	 * Constructor
+	 * @param config valve3 configuration
+	 */
+	public Dispatcher(ConfigFile config)
+	{
+		pools = new LinkedHashMap<String, Pool>();
+		for (Object[] d : DEFAULTS)
+		{
+			String name = (String)d[0];
+			int threads = StringUtils.stringToInt(config.getString("dispatch." + name + ".threads"), (Integer)d[1]);
+			int queue = StringUtils.stringToInt(config.getString("dispatch." + name + ".queue"), (Integer)d[2]);
+			int timeout = StringUtils.stringToInt(config.getString("dispatch." + name + ".timeout"), (Integer)d[3]);
+			pools.put(name, new Pool(name, Math.max(1, threads), Math.max(1, queue), timeout));
+			LOGGER.info("dispatch.{}.threads: {}, queue: {}, timeout: {}", name, threads, queue, timeout);
+		}
+		retryAfter = StringUtils.stringToInt(config.getString("dispatch.retryAfter"), DEFAULT_RETRY_AFTER);
+		LOGGER.info("dispatch.retryAfter: {}", retryAfter);
+		// time limits of requests which ended are dropped, not kept until due
+		ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("dispatch-timer-"));
+		t.setRemoveOnCancelPolicy(true);
+		timer = t;
+	}
+
+	/**
+	 * Yield pool handling an action
+	 * @param action "a" parameter of request
+	 * @return pool
+	 */
+	public Pool getPool(String action)
+	{
+		Pool pool = pools.get(action);
+		return (pool == null) ? pools.get(DEFAULT_POOL) : pool;
+	}
+
+	/**
+	 * Yield time refused clients are told to wait before retrying
+	 * @return time in seconds
+	 */
+	public int getRetryAfter()
+	{
+		return retryAfter;
+	}
+
+	/**
+	 * Schedule a time limit
+	 * @param task run when time is up
+	 * @param timeout time in ms, 0 for none
+	 * @return scheduled task, to cancel once the request ended; null if
+	 * there is no limit
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long timeout)
+	{
+		if (timeout <= 0)
+			return null;
+		return timer.schedule(task, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Add pool metrics to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		for (Pool pool : pools.values())
+		{
+			String prefix = "dispatch." + pool.name;
+			status.put(prefix + ".active", pool.executor.getActiveCount());
+			status.put(prefix + ".queued", pool.executor.getQueue().size());
+			status.put(prefix + ".completed", pool.executor.getCompletedTaskCount());
+			status.put(prefix + ".rejected", pool.rejected.get());
+			status.put(prefix + ".timedOut", pool.timedOut.get());
+		}
+	}
+
+	/**
+	 * Stop worker threads, used on application shutdown
+	 */
+	public void shutdown()
+	{
+		timer.shutdownNow();
+		for (Pool pool : pools.values())
+			pool.executor.shutdownNow();
+	}
+
+	/**
+	 * Worker pool of one kind of request
+	 */
+	public static class Pool
+	{
+		private final String name;
+		private final ThreadPoolExecutor executor;
+		private final long timeout;
+		private final AtomicLong rejected;
+		private final AtomicLong timedOut;
+
+		Pool(String name, int threads, int queue, long timeout)
+		{
+			this.name = name;
+			this.timeout = timeout;
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue), new DaemonThreadFactory("valve3-" + name + "-"));
+			executor.allowCoreThreadTimeOut(true);
+			rejected = new AtomicLong();
+			timedOut = new AtomicLong();
+		}
+
+		/**
+		 * Run task on a pool thread
+		 * @param task task to run
+		 * @return future of task, to cancel it
+		 * @throws java.util.concurrent.RejectedExecutionException if threads and queue are full
+		 */
+		public Future<?> submit(Runnable task)
+		{
+			try
+			{
+				return executor.submit(task);
+			}
+			catch (RuntimeException e)
+			{
+				rejected.incrementAndGet();
+				throw e;
+			}
+		}
+
+		/**
+		 * Count a request that ran out of time
+		 */
+		public void timedOut()
+		{
+			timedOut.incrementAndGet();
+		}
+
+		/**
+		 * Yield pool name
+		 * @return name
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Check if requests of pool are bulk work
+		 * @return true for raw data exports
+		 */
+		public boolean isBulk()
+		{
+			return name.equals(BULK_POOL);
+		}
+
+		/**
+		 * Yield time limit for handling a request
+		 * @return time in ms, 0 for none
+		 */
+		public long getTimeout()
+		{
+			return timeout;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.result.BusyMessage;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs raw data exports as background jobs, so long exports don't hold a
+ * connection until they are written and aren't cut off by proxy timeouts.
+ * Request: valve3.jsp?a=exportJob&amp;op=...
+ * <ul>
+ * <li>op=submit (default) takes the parameters of a rawData request and
+ * answers with the status of the new job, including its id</li>
+ * <li>op=status&amp;id=... answers with state, rows and bytes written; once
+ * the job is done also with the URL of the exported file, which is served
+ * like other raw data files, resumable with ranges</li>
+ * <li>op=cancel&amp;id=... stops the job and answers with its status</li>
+ * </ul>
+ * Jobs are run by {@link ExportJobs}.
+ */
+public class ExportJobHandler implements HttpHandler
+{
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExportJobHandler.class);
+
+	private final RawDataHandler rawDataHandler;
+
+	/**
+	 * Constructor
+	 * @param rdh handler doing the exports
+	 */
+	public ExportJobHandler(RawDataHandler rdh)
+	{
+		rawDataHandler = rdh;
+	}
+
+	/**
+	 * Submit, report or cancel an export job
+	 * @see HttpHandler#handle
+	 */
+	public Object handle(HttpServletRequest request)
+	{
+		ExportJobs jobs = Valve3.getInstance().getExportJobs();
+		String op = StringUtils.stringToString(request.getParameter("op"), "submit");
+		try
+		{
+			if (op.equals("submit"))
+				return jobs.submit(rawDataHandler, request).getStatus();
+
+			String id = request.getParameter("id");
+			ExportJobs.Job job = jobs.get(id);
+			if (job == null)
+				throw new Valve3Exception("Unknown export job: " + id);
+			if (op.equals("status"))
+				return job.getStatus();
+			if (op.equals("cancel"))
+			{
+				job.cancel();
+				return job.getStatus();
+			}
+			throw new Valve3Exception("Illegal op parameter.");
+		}
+		catch (BusyException e)
+		{
+			LOGGER.warn("ExportJobHandler: {}", e.getMessage());
+			return new BusyMessage(e.getMessage(), e.getRetryAfter());
+		}
+		catch (Valve3Exception e)
+		{
+			LOGGER.info("ExportJobHandler error: {}", e.getMessage());
+			return new ErrorMessage(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.data.DataHandler.DaemonThreadFactory;
+import gov.usgs.volcanoes.valve3.data.RequestPriority;
+import gov.usgs.volcanoes.valve3.result.BusyMessage;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.valve3.result.ExportJobStatus;
+import gov.usgs.volcanoes.valve3.result.ExportStream;
+import gov.usgs.volcanoes.valve3.result.RawData;
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Raw data exports run as background jobs, see {@link ExportJobHandler}.
+ * Jobs run on a bounded worker pool as bulk work and write their export to
+ * a file in data/, counting rows and bytes as they go. A finished export is
+ * handed to the {@link ResultDeleter} like any raw data file: it is kept
+ * for results.ttl, within results.quota, until shortly after its first
+ * complete download from the URL in the job status. Job records are kept
+ * for exportJobs.ttl after the job ends. A job refused by admission control
+ * waits and tries again rather than failing.
+ *
+ * Configuration in valve3.config: exportJobs.threads, exportJobs.queue and
+ * exportJobs.ttl (ms).
+ */
+public class ExportJobs
+{
+	public static final int DEFAULT_THREADS = 2;
+	public static final int DEFAULT_QUEUE = 20;
+	public static final long DEFAULT_TTL = 60 * 60 * 1000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(ExportJobs.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ThreadPoolExecutor executor;
+	private final Map<String, Job> jobs;
+	private final long ttl;
+	private final int retryAfter;
+	private final AtomicLong done;
+	private final AtomicLong failed;
+	private final AtomicLong cancelled;
+	private final AtomicLong rejected;
+
+	/**
+	 * Constructor
+	 * @param config valve3 configuration
+	 * @param retryAfter seconds refused clients are told to wait
+	 */
+	public ExportJobs(ConfigFile config, int retryAfter)
+	{
+		int threads = StringUtils.stringToInt(config.getString("exportJobs.threads"), DEFAULT_THREADS);
+		int queue = StringUtils.stringToInt(config.getString("exportJobs.queue"), DEFAULT_QUEUE);
+		ttl = StringUtils.stringToInt(config.getString("exportJobs.ttl"), (int)DEFAULT_TTL);
+		LOGGER.info("exportJobs.threads: {}, queue: {}, ttl: {}", threads, queue, ttl);
+		this.retryAfter = retryAfter;
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new DaemonThreadFactory("export-job-"));
+		executor.allowCoreThreadTimeOut(true);
+		jobs = new ConcurrentHashMap<String, Job>();
+		done = new AtomicLong();
+		failed = new AtomicLong();
+		cancelled = new AtomicLong();
+		rejected = new AtomicLong();
+	}
+
+	/**
+	 * Start a job exporting the raw data of a request
+	 * @param handler handler doing the export
+	 * @param request rawData request, its parameters are copied
+	 * @return new job
+	 * @throws BusyException if all threads are busy and the queue is full
+	 */
+	public Job submit(RawDataHandler handler, HttpServletRequest request) throws BusyException
+	{
+		removeExpired();
+		Job job = new Job(UUID.randomUUID().toString(), handler, new DetachedRequest(request));
+		jobs.put(job.id, job);
+		try
+		{
+			Future<?> future = executor.submit(job);
+			synchronized (job)
+			{
+				job.future = future;
+			}
+		}
+		catch (RejectedExecutionException e)
+		{
+			jobs.remove(job.id);
+			rejected.incrementAndGet();
+			throw new BusyException("Server busy, too many export jobs", retryAfter);
+		}
+		return job;
+	}
+
+	/**
+	 * Look up job
+	 * @param id job ID
+	 * @return job, null if unknown or expired
+	 */
+	public Job get(String id)
+	{
+		return (id == null) ? null : jobs.get(id);
+	}
+
+	/**
+	 * Add job metrics to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		status.put("exportJobs.active", executor.getActiveCount());
+		status.put("exportJobs.queued", executor.getQueue().size());
+		status.put("exportJobs.count", jobs.size());
+		status.put("exportJobs.done", done.get());
+		status.put("exportJobs.failed", failed.get());
+		status.put("exportJobs.cancelled", cancelled.get());
+		status.put("exportJobs.rejected", rejected.get());
+	}
+
+	/**
+	 * Stop worker threads, used on application shutdown
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Forget jobs which ended more than ttl ago
+	 */
+	private void removeExpired()
+	{
+		long oldest = System.currentTimeMillis() - ttl;
+		for (Iterator<Job> it = jobs.values().iterator(); it.hasNext(); )
+		{
+			Job job = it.next();
+			if (job.isExpired(oldest))
+				it.remove();
+		}
+	}
+
+	/**
+	 * State of a job
+	 */
+	public enum State
+	{
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	/**
+	 * Raw data export running in the background
+	 */
+	public class Job implements Runnable
+	{
+		private final String id;
+		private final RawDataHandler handler;
+		private final HttpServletRequest request;
+		private final AtomicLong rows;
+		private final AtomicLong bytes;
+		private Future<?> future;
+		private volatile State state;
+		private String message;
+		private RawData result;
+		private long ended;
+
+		Job(String id, RawDataHandler handler, HttpServletRequest request)
+		{
+			this.id = id;
+			this.handler = handler;
+			this.request = request;
+			rows = new AtomicLong();
+			bytes = new AtomicLong();
+			state = State.QUEUED;
+		}
+
+		/**
+		 * Run export, on a pool thread
+		 */
+		public void run()
+		{
+			synchronized (this)
+			{
+				if (state != State.QUEUED)
+					return;
+				state = State.RUNNING;
+			}
+			RequestPriority.setBulk(true);
+			try
+			{
+				Object r;
+				while ((r = handler.export(request, true)) instanceof BusyMessage)
+				{
+					// too many exports running, wait for one to end
+					int retryAfter = ((BusyMessage)r).getRetryAfter();
+					LOGGER.info("Export job {} busy, retrying in {}s", id, retryAfter);
+					Thread.sleep(Math.max(1, retryAfter) * 1000L);
+				}
+				if (r instanceof ExportStream)
+				{
+					RawData rd = write((ExportStream)r);
+					if (end(State.DONE, null, rd))
+						Valve3.getInstance().getResultDeleter().addResult(rd);
+					else
+						rd.delete();
+				}
+				else if (r instanceof RawData)
+				{
+					// seed exports are written to a file by the handler, which
+					// also hands it to the result deleter
+					RawData rd = (RawData)r;
+					bytes.set(rd.getSize());
+					end(State.DONE, null, rd);
+				}
+				else if (r instanceof ErrorMessage)
+					end(State.FAILED, ((ErrorMessage)r).getMessage(), null);
+				else
+					end(State.FAILED, "No data to export", null);
+			}
+			catch (InterruptedIOException e)
+			{
+				end(State.CANCELLED, null, null);
+			}
+			catch (InterruptedException e)
+			{
+				end(State.CANCELLED, null, null);
+			}
+			catch (Exception e)
+			{
+				if (Thread.currentThread().isInterrupted())
+					end(State.CANCELLED, null, null);
+				else
+				{
+					LOGGER.info("Export job {} failed: {}", id, e.toString());
+					end(State.FAILED, e.getMessage(), null);
+				}
+			}
+			finally
+			{
+				RequestPriority.setBulk(false);
+			}
+		}
+
+		/**
+		 * Write streamed export to a file in data/, counting progress
+		 * @return raw data result of file
+		 */
+		private RawData write(ExportStream es) throws IOException
+		{
+			// writeTo releases the stream's permits, but isn't reached if the
+			// file can't be opened
+			try
+			{
+				String fn = id.substring(0, 8) + "_" + es.getFilename();
+				String filePath = Valve3.getInstance().getApplicationPath() + File.separatorChar + "data" + File.separatorChar + fn;
+				RawData rd = new RawData("data/" + fn, filePath);
+				String outputType = StringUtils.stringToString(request.getParameter("o"), "csv");
+				OutputStream out = new ProgressOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), BUFFER_SIZE), outputType);
+				try
+				{
+					es.writeTo(out, false);
+					out.close();
+				}
+				catch (IOException e)
+				{
+					out.close();
+					rd.delete();
+					throw e;
+				}
+				return rd;
+			}
+			finally
+			{
+				es.release();
+			}
+		}
+
+		/**
+		 * Set final state, unless the job ended already
+		 * @return true if this call ended the job
+		 */
+		private synchronized boolean end(State s, String m, RawData rd)
+		{
+			if (state == State.DONE || state == State.FAILED || state == State.CANCELLED)
+				return false;
+			state = s;
+			message = m;
+			result = rd;
+			ended = System.currentTimeMillis();
+			if (s == State.DONE)
+				done.incrementAndGet();
+			else if (s == State.FAILED)
+				failed.incrementAndGet();
+			else
+				cancelled.incrementAndGet();
+			return true;
+		}
+
+		/**
+		 * Cancel job; a finished job is left as it is
+		 */
+		public void cancel()
+		{
+			Future<?> f;
+			synchronized (this)
+			{
+				f = future;
+			}
+			if (end(State.CANCELLED, null, null) && f != null)
+				f.cancel(true);
+		}
+
+		/**
+		 * Yield current state and progress; a done job whose file has been
+		 * deleted by the result deleter is reported as expired
+		 * @return job status result
+		 */
+		public synchronized ExportJobStatus getStatus()
+		{
+			if (result != null && !new File(result.getLocalFilename()).isFile())
+				return new ExportJobStatus(id, "expired", rows.get(), bytes.get(), null, message);
+			return new ExportJobStatus(id, state.toString().toLowerCase(), rows.get(), bytes.get(),
+					(result == null) ? null : result.getURL(), message);
+		}
+
+		private synchronized boolean isExpired(long oldest)
+		{
+			return ended != 0 && ended < oldest;
+		}
+
+		/**
+		 * Counts bytes and data rows written, stops the export once the job
+		 * is cancelled. CSV rows are the lines after the header which aren't
+		 * comments, XML and JSON rows are told by the start of their first line.
+		 */
+		private class ProgressOutputStream extends FilterOutputStream
+		{
+			private final byte[] rowStart;
+			private final byte[] lineStart;
+			private int length;
+			private boolean header;
+
+			ProgressOutputStream(OutputStream out, String outputType)
+			{
+				super(out);
+				if (outputType.equals("xml"))
+					rowStart = "\t\t<ROW".getBytes();
+				else if (outputType.equals("json"))
+					rowStart = "\t\t{".getBytes();
+				else
+					rowStart = null;
+				lineStart = new byte[(rowStart == null) ? 1 : rowStart.length];
+			}
+
+			public void write(int b) throws IOException
+			{
+				check();
+				out.write(b);
+				count(b);
+				bytes.incrementAndGet();
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				check();
+				out.write(b, off, len);
+				for (int i = off; i < off + len; i++)
+					count(b[i]);
+				bytes.addAndGet(len);
+			}
+
+			private void count(int b)
+			{
+				if (b == '\n')
+				{
+					if (isRow())
+						rows.incrementAndGet();
+					length = 0;
+				}
+				else if (length < lineStart.length)
+					lineStart[length++] = (byte)b;
+			}
+
+			private boolean isRow()
+			{
+				if (rowStart == null)
+				{
+					if (length > 0 && lineStart[0] == '#')
+						return false;
+					// the first other line is the header
+					if (!header)
+					{
+						header = true;
+						return false;
+					}
+					return true;
+				}
+				if (length < rowStart.length)
+					return false;
+				for (int i = 0; i < rowStart.length; i++)
+					if (lineStart[i] != rowStart[i])
+						return false;
+				return true;
+			}
+
+			private void check() throws IOException
+			{
+				if (Thread.currentThread().isInterrupted() || state == State.CANCELLED)
+					throw new InterruptedIOException("Export job " + id + " cancelled");
+			}
+		}
+	}
+
+	/**
+	 * Copy of the parameters and address of a request, which the container
+	 * recycles once it has been answered
+	 */
+	private static class DetachedRequest extends HttpServletRequestWrapper
+	{
+		private final Map<String, String[]> parameters;
+		private final String serverName;
+		private final String requestURL;
+		private final String queryString;
+
+		DetachedRequest(HttpServletRequest request)
+		{
+			super(request);
+			parameters = new HashMap<String, String[]>();
+			// Not using generics because HttpServletRequest is Java 1.4
+			Map map = request.getParameterMap();
+			for (Object k : map.keySet())
+				parameters.put((String)k, ((String[])map.get(k)).clone());
+			serverName = request.getServerName();
+			requestURL = request.getRequestURL().toString();
+			queryString = request.getQueryString();
+		}
+
+		public String getParameter(String name)
+		{
+			String[] values = parameters.get(name);
+			return (values == null || values.length == 0) ? null : values[0];
+		}
+
+		public Map<String, String[]> getParameterMap()
+		{
+			return Collections.unmodifiableMap(parameters);
+		}
+
+		public Enumeration<String> getParameterNames()
+		{
+			return Collections.enumeration(parameters.keySet());
+		}
+
+		public String[] getParameterValues(String name)
+		{
+			return parameters.get(name);
+		}
+
+		public String getServerName()
+		{
+			return serverName;
+		}
+
+		public StringBuffer getRequestURL()
+		{
+			return new StringBuffer(requestURL);
+		}
+
+		public String getQueryString()
+		{
+			return queryString;
+		}
+	}
+}
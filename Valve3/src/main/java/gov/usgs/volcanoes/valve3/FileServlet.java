@@ -0,0 +1,217 @@
+package gov.usgs.volcanoes.valve3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves plot images under img/ and raw data files under data/. Images
+ * rendered in memory are taken from the {@link ImageStore}, everything else
+ * from the directory named by the servlet path. Complete downloads of raw
+ * data files are reported to the {@link ResultDeleter}.
+ *
+ * Files are sent without copying them through the heap: by the container
+ * (Tomcat's sendfile) where it offers to, otherwise with
+ * FileChannel.transferTo. Single byte range requests are answered with
+ * partial content, so large downloads can be resumed.
+ */
+public class FileServlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * @see HttpServlet#doGet
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		String name = request.getPathInfo();
+		if (name == null || name.length() <= 1 || name.indexOf("..") != -1 || name.indexOf('/', 1) != -1)
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		name = name.substring(1);
+		String dir = request.getServletPath().substring(1);
+
+		String contentType = getServletContext().getMimeType(name);
+		if (contentType == null)
+			contentType = "application/octet-stream";
+
+		byte[] image = dir.equals("img") ? Valve3.getInstance().getImageStore().get("img/" + name) : null;
+		if (image != null)
+		{
+			response.setContentType(contentType);
+			response.setContentLength(image.length);
+			OutputStream os = response.getOutputStream();
+			os.write(image);
+			os.flush();
+			return;
+		}
+
+		File file = new File(Valve3.getInstance().getApplicationPath() + File.separator + dir + File.separator + name);
+		if (!file.isFile())
+		{
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (send(request, response, file, contentType) && dir.equals("data"))
+			Valve3.getInstance().getResultDeleter().downloaded("data/" + name);
+	}
+
+	/**
+	 * Send file, or the byte range of it asked for by the request
+	 * @param request request, checked for Range and If-Range headers
+	 * @param response response to send file with
+	 * @param file file to send
+	 * @param contentType content type of response
+	 * @return true if the whole file was sent
+	 * @throws IOException
+	 */
+	public static boolean send(HttpServletRequest request, HttpServletResponse response, File file, String contentType) throws IOException
+	{
+		long length = file.length();
+		long lastModified = file.lastModified() / 1000 * 1000;
+		long start = 0;
+		long end = length - 1;
+		boolean partial = false;
+
+		String range = request.getHeader("Range");
+		if (range != null && isRangeCurrent(request, lastModified))
+		{
+			long[] r = parseRange(range, length);
+			if (r == null)
+			{
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return false;
+			}
+			if (r.length == 2)
+			{
+				start = r[0];
+				end = r[1];
+				partial = true;
+			}
+		}
+
+		response.setContentType(contentType);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setDateHeader("Last-Modified", lastModified);
+		if (partial)
+		{
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+		}
+		// setContentLength takes an int, exports can be larger
+		response.setHeader("Content-Length", Long.toString(end - start + 1));
+		if (request.getMethod().equals("HEAD"))
+			return false;
+
+		// sendfile happens when the servlet returns, too late for async requests
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) && !request.isAsyncStarted())
+		{
+			// the container sends the file after we return
+			request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START, Long.valueOf(start));
+			request.setAttribute(SENDFILE_END, Long.valueOf(end + 1));
+			return !partial;
+		}
+
+		OutputStream os = response.getOutputStream();
+		FileChannel in = new FileInputStream(file).getChannel();
+		try
+		{
+			WritableByteChannel out = Channels.newChannel(os);
+			long position = start;
+			while (position <= end)
+			{
+				long n = in.transferTo(position, end + 1 - position, out);
+				if (n <= 0)
+					break;
+				position += n;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		os.flush();
+		return !partial;
+	}
+
+	/**
+	 * Check If-Range header: a range applies if the file hasn't changed since
+	 * the date given. Entity tags are never current, there are none.
+	 */
+	private static boolean isRangeCurrent(HttpServletRequest request, long lastModified)
+	{
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		try
+		{
+			return request.getDateHeader("If-Range") == lastModified;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Parse Range header for one byte range
+	 * @param range header value
+	 * @param length file length
+	 * @return first and last byte, an empty array to send the whole file
+	 * (malformed or multiple ranges), or null if the range can't be satisfied
+	 */
+	static long[] parseRange(String range, long length)
+	{
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			return new long[0];
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0)
+			return new long[0];
+		try
+		{
+			long start;
+			long end;
+			if (dash == 0)
+			{
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix <= 0 || length == 0)
+					return null;
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			}
+			else
+			{
+				start = Long.parseLong(spec.substring(0, dash));
+				end = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+				if (end < start)
+					return new long[0];
+				if (start >= length)
+					return null;
+				end = Math.min(end, length - 1);
+			}
+			return new long[] { start, end };
+		}
+		catch (NumberFormatException e)
+		{
+			return new long[0];
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package gov.usgs.volcanoes.valve3;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps encoded plot images in memory for the o=xml and o=html flows, which
+ * hand the browser a URL under img/ instead of the image itself. The total
+ * size is bounded; when it is exceeded the least recently used images are
+ * dropped. Images are otherwise removed by the {@link ResultDeleter}.
+ */
+public class ImageStore
+{
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private final long maxBytes;
+	private final LinkedHashMap<String, byte[]> images;
+	private long size;
+
+	/**
+	 * Constructor
+	 * @param maxBytes maximum total size of stored images
+	 */
+	public ImageStore(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		images = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+	}
+
+	/**
+	 * Store image, replacing any image with the same name
+	 * @param name image name, as used in the URL
+	 * @param image encoded image
+	 * @return false if the image is larger than the store
+	 */
+	public synchronized boolean put(String name, byte[] image)
+	{
+		remove(name);
+		if (image.length > maxBytes)
+			return false;
+
+		images.put(name, image);
+		size += image.length;
+		for (Iterator<Map.Entry<String, byte[]>> it = images.entrySet().iterator(); size > maxBytes && it.hasNext(); )
+		{
+			size -= it.next().getValue().length;
+			it.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Yield stored image
+	 * @param name image name
+	 * @return encoded image, or null if it isn't stored
+	 */
+	public synchronized byte[] get(String name)
+	{
+		return images.get(name);
+	}
+
+	/**
+	 * Drop image
+	 * @param name image name
+	 */
+	public synchronized void remove(String name)
+	{
+		byte[] image = images.remove(name);
+		if (image != null)
+			size -= image.length;
+	}
+
+	/**
+	 * Yield number of stored images
+	 * @return image count
+	 */
+	public synchronized int getCount()
+	{
+		return images.size();
+	}
+
+	/**
+	 * Yield total size of stored images
+	 * @return size in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,173 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.result.Status;
+import gov.usgs.volcanoes.valve3.result.Valve3Plot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Keeps rendered plots so identical plot requests, such as the same
+ * helicorder window open on several operators' screens, are rendered once.
+ * Requests are matched by their parameters regardless of order.
+ *
+ * Plots ending at an absolute time are kept for the configured ttl; plots
+ * ending now ("N" or relative end time) change with every request and are
+ * only kept for the (usually much shorter) relative ttl, 0 to not cache
+ * them at all. Least recently used plots are dropped when the entry count
+ * or the size of the images held in memory exceeds the limits.
+ *
+ * The ttl should stay below the ResultDeleter threshold, after which
+ * image files of cached plots are gone.
+ */
+public class PlotCache
+{
+	public static final long DEFAULT_TTL = 300000;
+	public static final long DEFAULT_RELATIVE_TTL = 0;
+	public static final int DEFAULT_MAX_ENTRIES = 500;
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	// accounts for the plot description of entries without in-memory image
+	private static final int ENTRY_OVERHEAD = 1024;
+
+	private final long ttl;
+	private final long relativeTtl;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Constructor
+	 * @param ttl time in ms plots with absolute end time are kept
+	 * @param relativeTtl time in ms plots with relative end time are kept, 0 to not keep them
+	 * @param maxEntries maximum number of cached plots
+	 * @param maxBytes maximum size of cached plots
+	 */
+	public PlotCache(long ttl, long relativeTtl, int maxEntries, long maxBytes)
+	{
+		this.ttl = ttl;
+		this.relativeTtl = relativeTtl;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	}
+
+	/**
+	 * Check if any component of the plot request ends at a time relative to now
+	 * @param request plot request
+	 * @return true if an end time is missing, "N" or relative
+	 */
+	public static boolean isRelative(HttpServletRequest request)
+	{
+		int n = StringUtils.stringToInt(request.getParameter("n"), 1);
+		for (int i = 0; i < n; i++)
+		{
+			String et = request.getParameter("et." + i);
+			if (et == null || et.equals("N") || et.startsWith("-"))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Yield cached plot
+	 * @param key request key, see {@link RequestKey}
+	 * @return plot, or null if it isn't cached, has expired or its image is gone
+	 */
+	public synchronized Valve3Plot get(String key)
+	{
+		Entry entry = entries.get(key);
+		if (entry != null && (entry.expires < System.currentTimeMillis() || !entry.plot.isImageAvailable()))
+		{
+			remove(key);
+			entry = null;
+		}
+		if (entry == null)
+		{
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.plot;
+	}
+
+	/**
+	 * Cache rendered plot
+	 * @param key request key, see {@link RequestKey}
+	 * @param plot rendered plot
+	 * @param relative if plot ends at a time relative to now
+	 */
+	public synchronized void put(String key, Valve3Plot plot, boolean relative)
+	{
+		long t = relative ? relativeTtl : ttl;
+		if (t <= 0)
+			return;
+
+		remove(key);
+		Entry entry = new Entry(plot, System.currentTimeMillis() + t);
+		if (entry.size > maxBytes)
+			return;
+		entries.put(key, entry);
+		size += entry.size;
+		for (Iterator<Entry> it = entries.values().iterator(); (size > maxBytes || entries.size() > maxEntries) && it.hasNext(); )
+		{
+			size -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Drop all cached plots
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Add cache metrics to status
+	 * @param status status to fill
+	 */
+	public synchronized void addStatus(Status status)
+	{
+		status.put("plotCache.hits", hits);
+		status.put("plotCache.misses", misses);
+		status.put("plotCache.evictions", evictions);
+		status.put("plotCache.count", entries.size());
+		status.put("plotCache.size", size);
+	}
+
+	private void remove(String key)
+	{
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			size -= entry.size;
+	}
+
+	/**
+	 * Cached plot and its expiration time
+	 */
+	private static class Entry
+	{
+		final Valve3Plot plot;
+		final long expires;
+		final long size;
+
+		Entry(Valve3Plot p, long e)
+		{
+			plot = p;
+			expires = e;
+			byte[] image = p.getImage();
+			size = ENTRY_OVERHEAD + (image == null ? 0 : image.length);
+		}
+	}
+}
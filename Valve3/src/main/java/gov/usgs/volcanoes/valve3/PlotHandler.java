@@ -1,12 +1,13 @@
 package gov.usgs.volcanoes.valve3;
 
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.data.DataHandler;
 import gov.usgs.volcanoes.valve3.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.plotter.ChannelMapPlotter;
+import gov.usgs.volcanoes.valve3.result.BusyMessage;
 import gov.usgs.volcanoes.valve3.result.ErrorMessage;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.valve3.Valve3;
@@ -21,6 +22,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -63,6 +69,9 @@ public class PlotHandler implements HttpHandler
 	public static final int MAX_PLOT_WIDTH				= 6000;
 	public static final int MAX_PLOT_HEIGHT				= 50000;
 	
+	private static final AtomicLong FILE_COUNTER = new AtomicLong();
+	private static final String FILE_PREFIX = "tmp" + Long.toString(System.currentTimeMillis(), 36) + "_";
+
 	private DataHandler dataHandler;
 	/**
 	 * Constructor
@@ -106,7 +115,7 @@ public class PlotHandler implements HttpHandler
 						throw new Valve3Exception("Missing data source for " + source);
 					ec = v3.getExportConfig("");
 					ec.parameterize( params );
-					Pool<VDXClient> pool = v3.getDataHandler().getVDXClient(dsd.getVDXClientName());
+					VDXClientPool pool = v3.getDataHandler().getVDXClient(dsd.getVDXClientName());
 					
 					if (pool == null)
 						throw new Valve3Exception("Unknown VDX server " + dsd.getVDXClientName() + " check .vdx line in data.config");
@@ -222,22 +231,51 @@ public class PlotHandler implements HttpHandler
 	}
 	
 	/**
-	 * Handle the given http request and generate a plot. 
+	 * Handle the given http request and generate a plot. Concurrent
+	 * identical requests share one plot.
 	 * @see HttpHandler#handle 
 	 */
-	public Object handle(HttpServletRequest request) {
+	public Object handle(final HttpServletRequest request) {
+		final String key = RequestKey.of(request);
+		PlotCache plotCache = Valve3.getInstance().getPlotCache();
+		if (plotCache != null) {
+			Valve3Plot cached = plotCache.get(key);
+			if (cached != null)
+				return cached;
+		}
+		try {
+			return Valve3.getInstance().getRequestCoalescer().execute(key, new Callable<Object>() {
+				public Object call() {
+					return plot(request, key);
+				}
+			});
+		} catch (BusyException e) {
+			LOGGER.warn("{}", e.getMessage());
+			return new BusyMessage(e.getMessage(), e.getRetryAfter());
+		} catch (Valve3Exception e) {
+			LOGGER.error("{}", e.getMessage());
+			return new ErrorMessage(e.getMessage());
+		}
+	}
+
+	/**
+	 * Generate a plot and keep it in the plot cache.
+	 * @param request request to process
+	 * @param key request key, see {@link RequestKey}
+	 * @return plot, or error message
+	 */
+	protected Object plot(HttpServletRequest request, String key) {
 		try {
 			List<PlotComponent> components = parseRequest(request);
 			if (components == null || components.size() <= 0)
 				return null;
 			
 			Valve3Plot plot = new Valve3Plot(request, components.size());
+			List<Plotter> plotters = new ArrayList<Plotter>(components.size());
 			for (PlotComponent component : components) {
 				String source				= component.getSource();
 				Plotter plotter				= null;
 				DataSourceDescriptor dsd	= null;
-				if (component.getExportable())
-					plot.setExportable( true );
 				if (source.equals("channel_map")) {
 					plotter	= new ChannelMapPlotter();
 					dsd		= dataHandler.getDataSourceDescriptor(component.get("subsrc"));
@@ -248,15 +286,46 @@ public class PlotHandler implements HttpHandler
 				} else {
 					plotter = dataHandler.getDataSourceDescriptor(component.getSource()).getPlotter();
 				}
-				if (plotter != null)
+				plotters.add(plotter);
+			}
+			Exception[] failures = null;
+			if (components.size() > 1)
+				failures = prefetch(plot, components, plotters);
+
+			// rendering is serial, components draw on one plot
+			for (int i = 0; i < components.size(); i++) {
+				PlotComponent component	= components.get(i);
+				Plotter plotter			= plotters.get(i);
+				if (component.getExportable())
+					plot.setExportable( true );
+				// a source which failed to prefetch isn't asked again
+				if (failures != null && failures[i] != null) {
+					if (failures[i] instanceof Valve3Exception)
+						throw (Valve3Exception)failures[i];
+					throw new Valve3Exception(failures[i].getMessage());
+				}
+				if (plotter != null) {
+					AdmissionControl.Permit permit = Valve3.getInstance().getAdmissionControl().acquire(plotter);
 					try {
 						plotter.plot(plot, component);
 					} catch (Exception e) {
 						throw new Valve3Exception(e.getMessage());
+					} finally {
+						permit.release();
 					}
+				}
 			}
-			Valve3.getInstance().getResultDeleter().addResult(plot);
+			plot.release();
+			// plots sent straight from memory leave nothing to clean up
+			if (plot.getImage() == null)
+				Valve3.getInstance().getResultDeleter().addResult(plot);
+			PlotCache plotCache = Valve3.getInstance().getPlotCache();
+			if (plotCache != null)
+				plotCache.put(key, plot, PlotCache.isRelative(request));
 			return plot;
+		} catch (BusyException e) {
+			LOGGER.warn("{}", e.getMessage());
+			return new BusyMessage(e.getMessage(), e.getRetryAfter());
 		} catch (Valve3Exception e) {
 			LOGGER.error("{}", e.getMessage());
 			return new ErrorMessage(e.getMessage());
@@ -264,12 +333,70 @@ public class PlotHandler implements HttpHandler
 	}
 	
 	/**
-	 * Yield a random file name
+	 * Let the plotters of a plot fetch their data at the same time, on the
+	 * prefetch executor, so a combined plot waits for its slowest source
+	 * rather than the sum of them. Failures are kept for the serial plot
+	 * pass to report, so it doesn't wait on a failed source again.
+	 * @param plot plot being generated
+	 * @param components components of plot
+	 * @param plotters plotters of components, entries may be null
+	 * @return failure of each component, null entries for those fetched
+	 */
+	private Exception[] prefetch(final Valve3Plot plot, List<PlotComponent> components, List<Plotter> plotters) {
+		ExecutorService executor = dataHandler.getPrefetchExecutor();
+		final Exception[] failures = new Exception[components.size()];
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		Runnable first = null;
+		try {
+			for (int i = 0; i < components.size(); i++) {
+				final PlotComponent component = components.get(i);
+				final Plotter plotter = plotters.get(i);
+				final int index = i;
+				if (plotter == null)
+					continue;
+				Runnable task = new Runnable() {
+					public void run() {
+						try {
+							AdmissionControl.Permit permit = Valve3.getInstance().getAdmissionControl().acquire(plotter);
+							try {
+								plotter.prefetch(plot, component);
+							} finally {
+								permit.release();
+							}
+						} catch (Exception e) {
+							LOGGER.debug("Prefetch of {} failed: {}", component.getSource(), e.getMessage());
+							failures[index] = e;
+						}
+					}
+				};
+				// this thread takes the first component itself
+				if (first == null)
+					first = task;
+				else
+					futures.add(executor.submit(task));
+			}
+			if (first != null)
+				first.run();
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// tasks catch their failures
+		} finally {
+			for (Future<?> future : futures)
+				future.cancel(true);
+		}
+		return failures;
+	}
+
+	/**
+	 * Yield a unique file name
 	 * @param extension filename extension
-	 * @return random file name in the img/ directory with .png extension
+	 * @return file name in the img/ directory with given extension, unique for the life of the application
 	 */
 	public static String getRandomFilename(String extension)
 	{
-		return "img" + File.separator + "tmp" + Math.round(Math.random() * 100000) + "." + extension; 
+		return "img" + File.separator + FILE_PREFIX + Long.toString(FILE_COUNTER.incrementAndGet(), 36) + "." + extension;
 	}
 }
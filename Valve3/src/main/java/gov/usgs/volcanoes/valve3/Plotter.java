@@ -1,17 +1,27 @@
 package gov.usgs.volcanoes.valve3;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.LinkedHashMap;
 
+import javax.imageio.ImageIO;
+
 import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.vdx.ExportConfig;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
@@ -86,6 +96,30 @@ abstract public class Plotter
 		throw new Valve3Exception("Data export not available for this data source.");
 	}
 	
+	/**
+	 * Prepares PlotComponent for export to a stream: gets the data and builds
+	 * comments, so that errors can be reported before output starts
+	 * @param comp PlotComponent
+	 * @param cmt comment
+	 * @throws Valve3Exception
+	 */
+	public void prepareExport(PlotComponent comp, Map<String,String> cmt) throws Valve3Exception
+	{
+		throw new Valve3Exception("Data export not available for this data source.");
+	}
+	
+	/**
+	 * Writes export prepared by prepareExport()
+	 * @param out writer for text export
+	 * @param seedOut stream for seed data, null for text export
+	 * @throws Valve3Exception
+	 * @throws IOException
+	 */
+	public void writeExport(Writer out, OutputStream seedOut) throws Valve3Exception, IOException
+	{
+		throw new Valve3Exception("Data export not available for this data source.");
+	}
+	
 	
 	/**
 	 * Returns flag if plotter output several components separately or as one plot
@@ -124,17 +158,31 @@ abstract public class Plotter
 	 */
 	abstract public void plot(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException;
 	
+	/**
+	 * Fetches data of PlotComponent ahead of plot(), so that the components
+	 * of one plot can be fetched at the same time. Nothing is rendered; a
+	 * plotter which can't fetch separately does nothing here and fetches in
+	 * plot().
+	 * @param v3p Valve3Plot the component will be rendered in
+	 * @param comp PlotComponent
+	 * @throws Valve3Exception
+	 */
+	public void prefetch(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException
+	{
+	}
+	
 	/**
 	 * Yield export configuration for specified source & client
 	 * @param vdxSource	vdx source name
 	 * @param vdxClient	vdx name
 	 * @return export config
+	 * @throws Valve3Exception
 	 */
-	public ExportConfig getExportConfig(String vdxSource, String vdxClient) {
+	public ExportConfig getExportConfig(String vdxSource, String vdxClient) throws Valve3Exception {
 		
 		// declare variables
 		List<String> stringList = null;
-		Pool<VDXClient> pool	= null;
+		VDXClientPool pool		= null;
 		VDXClient client		= null;
 		
 		Map<String, String> params = new LinkedHashMap<String, String>();
@@ -156,6 +204,8 @@ abstract public class Plotter
 				try {
 					stringList = client.getTextData(params);
 				} catch (Exception e){
+					if (!(e instanceof UtilException))
+						pool.invalidate(client);
 					stringList = new ArrayList<String>();
 				} finally {
 					pool.checkin(client);
@@ -183,21 +233,71 @@ abstract public class Plotter
 		return null;
 	}
 
+	/**
+	 * Render plot to the output format of the request. If images are kept in
+	 * memory, PNG and PostScript are attached to the plot and XML plots are
+	 * put in the image store; otherwise (or if the store is full) the image is
+	 * written to a file in img/.
+	 * @param v3p Valve3Plot
+	 * @throws PlotException
+	 * @throws Valve3Exception
+	 */
 	protected void writeFile(Valve3Plot v3p) throws PlotException, Valve3Exception {
 		Plot plot = v3p.getPlot();
 		plot.setBackgroundColor(Color.white);
+		boolean memory = Valve3.getInstance().isImageMemory();
 
 		switch (v3p.getOutputType()) {
 		case XML:
-		case PNG:
+			if (memory && v3p.storeImage(renderPNG(plot)))
+				break;
 			plot.writePNG(v3p.getLocalFilename());
 			break;
+		case PNG:
+			if (memory)
+				v3p.setImage(renderPNG(plot));
+			else
+				plot.writePNG(v3p.getLocalFilename());
+			break;
 		case PS:
+			// PostScript can only be written to a file, read it back and drop the file
 			plot.writePS(v3p.getLocalFilename());
+			if (memory) {
+				File file = new File(v3p.getLocalFilename());
+				try {
+					v3p.setImage(Files.readAllBytes(file.toPath()));
+				} catch (IOException e) {
+					throw new Valve3Exception("Can't read plot file: " + e.getMessage());
+				}
+				file.delete();
+			}
 			break;
 		default:
 			throw new Valve3Exception("Unknown output type " + v3p.getOutputType());
 		}
 
 	}
+
+	/**
+	 * Render plot to PNG in memory
+	 * @param plot plot to render
+	 * @return encoded image
+	 * @throws PlotException
+	 */
+	protected static byte[] renderPNG(Plot plot) throws PlotException {
+		BufferedImage image = new BufferedImage(plot.getWidth(), plot.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+		Graphics2D g2 = image.createGraphics();
+		try {
+			plot.render(g2);
+		} finally {
+			g2.dispose();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+		try {
+			ImageIO.write(image, "png", out);
+		} catch (IOException e) {
+			throw new PlotException("Can't encode plot: " + e.getMessage());
+		}
+		return out.toByteArray();
+	}
 }
@@ -3,23 +3,36 @@ package gov.usgs.volcanoes.valve3;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.valve3.data.DataHandler;
 import gov.usgs.volcanoes.valve3.data.DataSourceDescriptor;
+import gov.usgs.volcanoes.valve3.data.RequestPriority;
 import gov.usgs.volcanoes.valve3.plotter.ChannelMapPlotter;
+import gov.usgs.volcanoes.valve3.plotter.MergedExport;
 import gov.usgs.volcanoes.valve3.plotter.RawDataPlotter;
+import gov.usgs.volcanoes.valve3.result.BusyMessage;
 import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.valve3.result.ExportStream;
 import gov.usgs.volcanoes.valve3.result.RawData;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.zip.ZipOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -179,14 +192,69 @@ public class RawDataHandler implements HttpHandler
 
 	/**
 	 * Handle the given http request and generate raw data type result. 
+	 * Concurrent identical requests for an export written to file share
+	 * the file, which is then not deleted on download; streamed exports can
+	 * only be sent once and are never shared.
 	 * @see HttpHandler#handle 
 	 */
-	public Object handle(HttpServletRequest request) {
+	public Object handle(final HttpServletRequest request) {
+		if (!isFileExport(request))
+			return export(request);
+		// the server name decides if the open data option applies
+		String key = RequestKey.of(request) + "requestserver=" + request.getServerName();
+		final boolean[] computed = new boolean[1];
+		try {
+			Object result = Valve3.getInstance().getRequestCoalescer().execute(key, new Callable<Object>() {
+				public Object call() {
+					computed[0] = true;
+					return export(request);
+				}
+			});
+			if (!computed[0] && result instanceof RawData)
+				Valve3.getInstance().getResultDeleter().shared((RawData)result);
+			return result;
+		} catch (BusyException e) {
+			LOGGER.warn("RawDataHandler: {}", e.getMessage());
+			return new BusyMessage(e.getMessage(), e.getRetryAfter());
+		} catch (Valve3Exception e) {
+			LOGGER.info("RawDataHandler error: {}", e.getMessage());
+			return new ErrorMessage(e.getMessage());
+		}
+	}
+
+	/**
+	 * Check if export of request is written to a file
+	 * @param request request to check
+	 * @return true if streaming is disabled or the export includes seed data
+	 */
+	private boolean isFileExport(HttpServletRequest request) {
+		return !Valve3.getInstance().isExportStream() || "seed".equals(request.getParameter("o"));
+	}
+
+	/**
+	 * Generate raw data type result.
+	 * @param request request to process
+	 * @return raw data result, or error message
+	 */
+	protected Object export(HttpServletRequest request) {
+		return export(request, Valve3.getInstance().isExportStream());
+	}
+
+	/**
+	 * Generate raw data type result.
+	 * @param request request to process
+	 * @param stream whether text exports are streamed rather than written to a file
+	 * @return raw data result, export stream, or error message
+	 */
+	protected Object export(HttpServletRequest request, boolean stream) {
 		String ext = "";
+		AdmissionControl.Permit permit = null;
 		try {
 			List<PlotComponent> components = parseRequest(request);
 			if (components == null || components.size() <= 0)
 				return null;
+			if (isMultiSource(components))
+				return exportMerged(request, components, stream);
 			
 			SimpleDateFormat df = new SimpleDateFormat("yyyyMMddHHmmss");
 			df.setTimeZone(TimeZone.getTimeZone("GMT"));
@@ -200,9 +268,9 @@ public class RawDataHandler implements HttpHandler
 			String cmtTimes = "";
 			String cmtDataType = null;
 			double cmtSampleRate = 0.0;
-			Map<Integer, Rank> ranksMap = null;
 			boolean miniseed = false;
 			String fn = null, filePath = null, outFileName = null, outFilePath = null;
+			List<Plotter> prepared = new ArrayList<Plotter>();
 			
 			cmtBits.put( "URL", request.getRequestURL().toString() + "?" + request.getQueryString() );
 
@@ -233,18 +301,7 @@ public class RawDataHandler implements HttpHandler
 				}
 				String rk = component.get( "rk" );
 				if (rk == null) 
-					try {
-						ranksMap = RawDataPlotter.getRanks(dsd.getVDXSource(), dsd.getVDXClientName());
-						for (Map.Entry<Integer, Rank> me: ranksMap.entrySet() ) {
-							Rank r = me.getValue();
-							if ( r.getUserDefault() == 1 ) {
-								rk = "" + me.getKey();
-								component.put( "rk", rk );
-								break;
-							}
-						}
-						LOGGER.info("Ranks acquired");
-					} catch (Exception e) {}
+					rk = defaultRank(component, dsd);
 				if (rk != null) {
 					int rankID = component.getInt( "rk" );
 					if ( rankID != fn_rankID )
@@ -255,21 +312,8 @@ public class RawDataHandler implements HttpHandler
 						} else
 							throw new Valve3Exception( "Multi-rank export not supported" );
 				}
-				if ( fn_rankID != -1 && fn_rank.equals("") ) {
-					if ( dsd == null ) {
-						fn_rank = "RankNbr" + fn_rankID;
-					} else {
-						if (fn_rankID == 0) {
-							fn_rank = "Best Available Rank";
-						} else {
-							if ( ranksMap == null ) {
-								ranksMap = RawDataPlotter.getRanks(dsd.getVDXSource(), dsd.getVDXClientName());
-							}
-							fn_rank = ranksMap.get(fn_rankID).getName();
-						}
-					}
-				}
-				fn_rank = fn_rank.replaceAll("\\s", "");
+				if ( fn_rankID != -1 && fn_rank.equals("") )
+					fn_rank = rankName(fn_rankID, dsd);
 				timeZone = component.getTimeZone().getID();
 				dfc.setTimeZone(TimeZone.getTimeZone(timeZone));
 				cmtBits.put( "timezone", timeZone);
@@ -291,6 +335,10 @@ public class RawDataHandler implements HttpHandler
 				else
 					ext = outputType;
 				if (plotter != null) {
+					// the components share a source and so a plotter class, one
+					// permit covers the export; a stream holds it until written
+					if (permit == null)
+						permit = Valve3.getInstance().getAdmissionControl().acquire(plotter);
 					if ( miniseed ) {
 						try {
 							outFilePath = filePath + ".zip";
@@ -315,11 +363,21 @@ public class RawDataHandler implements HttpHandler
 							LOGGER.info("RawDataHandler file error" );
 							throw new Valve3Exception(eio.getMessage());
 						}
+					} else if (stream) {
+						// text exports are written when the result is sent
+						plotter.prepareExport(component, cmtBits);
+						prepared.add(plotter);
 					} else 
 						sb.append(plotter.toExport(component, cmtBits, null));
 				} 
 			}
 			
+			if ( outFilePath == null && stream ) {
+				ExportStream es = new ExportStream(fn + "." + ext, prepared, permit, Valve3.getInstance().isExportGzip());
+				permit = null;
+				return es;
+			}
+			
 			if ( outFilePath == null ) {
 				try
 				{
@@ -341,10 +399,279 @@ public class RawDataHandler implements HttpHandler
 			Valve3.getInstance().getResultDeleter().addResult(rd);
 			return rd;
 		}
+		catch (BusyException e)
+		{
+			LOGGER.warn("RawDataHandler: {}", e.getMessage());
+			return new BusyMessage(e.getMessage(), e.getRetryAfter());
+		}
 		catch (Valve3Exception e)
 		{
 			LOGGER.info("RawDataHandler error: {}", e.getMessage());
 			return new ErrorMessage(e.getMessage());
 		}
+		finally
+		{
+			if (permit != null)
+				permit.release();
+		}
+	}
+
+	/**
+	 * Fill in the user default rank of a component which names none
+	 * @param component component to export
+	 * @param dsd data source of component
+	 * @return rank ID, null if the source has no default rank
+	 */
+	private String defaultRank(PlotComponent component, DataSourceDescriptor dsd) {
+		try {
+			Map<Integer, Rank> ranksMap = RawDataPlotter.getRanks(dsd.getVDXSource(), dsd.getVDXClientName());
+			for (Map.Entry<Integer, Rank> me: ranksMap.entrySet() ) {
+				Rank r = me.getValue();
+				if ( r.getUserDefault() == 1 ) {
+					String rk = "" + me.getKey();
+					component.put( "rk", rk );
+					return rk;
+				}
+			}
+			LOGGER.info("Ranks acquired");
+		} catch (Exception e) {}
+		return null;
+	}
+
+	/**
+	 * Yield name of a rank, for file names and comments
+	 * @param rankID rank ID
+	 * @param dsd data source of rank
+	 * @return rank name without whitespace
+	 */
+	private String rankName(int rankID, DataSourceDescriptor dsd) throws Valve3Exception {
+		String name;
+		if ( dsd == null )
+			name = "RankNbr" + rankID;
+		else if ( rankID == 0 )
+			name = "Best Available Rank";
+		else
+			name = RawDataPlotter.getRanks(dsd.getVDXSource(), dsd.getVDXClientName()).get(rankID).getName();
+		return name.replaceAll("\\s", "");
+	}
+
+	/**
+	 * Check if the components of a request come from different data sources
+	 * or ranks, components without a rank get their default rank
+	 * @param components components to export
+	 * @return true if the export has to be merged by time
+	 */
+	private boolean isMultiSource(List<PlotComponent> components) {
+		String source = components.get(0).getSource();
+		for (PlotComponent component : components)
+			if (!component.getSource().equals(source))
+				return true;
+		if (source.equals("channel_map"))
+			return false;
+		DataSourceDescriptor dsd = dataHandler.getDataSourceDescriptor(source);
+		if (dsd == null)
+			return false;
+		String fn_rk = null;
+		for (int i = 0; i < components.size(); i++) {
+			PlotComponent component = components.get(i);
+			String rk = component.get("rk");
+			if (rk == null)
+				rk = defaultRank(component, dsd);
+			if (i == 0)
+				fn_rk = rk;
+			else if (rk == null ? fn_rk != null : !rk.equals(fn_rk))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Export components from different data sources or ranks as one CSV
+	 * file, merged by time. The components are prepared in parallel on the
+	 * export executor, so the export waits for its slowest source rather
+	 * than the sum of them; the merge is done while the result is written.
+	 * @param request request to process
+	 * @param components components to export
+	 * @param stream whether the export is streamed rather than written to a file
+	 * @return export stream, or raw data if not streamed
+	 * @throws Valve3Exception
+	 */
+	private Object exportMerged(HttpServletRequest request, List<PlotComponent> components, boolean stream) throws Valve3Exception {
+		if (!components.get(0).get("o").equals("csv"))
+			throw new Valve3Exception("Multi-source export is only available as csv");
+
+		SimpleDateFormat df = new SimpleDateFormat("yyyyMMddHHmmss");
+		df.setTimeZone(TimeZone.getTimeZone("GMT"));
+		SimpleDateFormat dfc = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date now = new Date();
+		String url = request.getRequestURL().toString() + "?" + request.getQueryString();
+		List<RawDataPlotter> plotters = new ArrayList<RawDataPlotter>();
+		List<Map<String,String>> cmtBits = new ArrayList<Map<String,String>>();
+		List<String> labels = new ArrayList<String>();
+		List<String> fn_sources = new ArrayList<String>();
+
+		for (PlotComponent component : components) {
+			String source = component.getSource();
+			DataSourceDescriptor dsd = dataHandler.getDataSourceDescriptor(source);
+			Plotter plotter = (dsd == null) ? null : dsd.getPlotter();
+			if (!(plotter instanceof RawDataPlotter))
+				throw new Valve3Exception("Multi-source export not supported for " + source);
+			String rk = component.get("rk");
+			if (rk == null)
+				rk = defaultRank(component, dsd);
+			String rank = (rk == null) ? "" : rankName(component.getInt("rk"), dsd);
+			String timeZone = component.getTimeZone().getID();
+			dfc.setTimeZone(TimeZone.getTimeZone(timeZone));
+			double endtime = component.getEndTime();
+			Map<String,String> bits = new LinkedHashMap<String,String>();
+			bits.put( "URL", url );
+			bits.put( "timezone", timeZone );
+			bits.put( "rank", rank );
+			bits.put( "reqtime", String.format( "%14.3f,%s,%s", (now.getTime()*0.001), dfc.format(now), timeZone) );
+			bits.put( "st", String.format( "%14.3f", component.getStartTime(endtime) ) );
+			bits.put( "et", String.format( "%14.3f", endtime ) );
+			bits.put( "source", source );
+			bits.put( "chCnt", StringUtils.stringToString(component.get("chCnt"), "None"));
+
+			String label = rank.equals("") ? source : source + "_" + rank;
+			if (labels.contains(label))
+				label = label + "_" + labels.size();
+			plotters.add((RawDataPlotter)plotter);
+			cmtBits.add(bits);
+			labels.add(label);
+			if (!fn_sources.contains(source))
+				fn_sources.add(source);
+		}
+
+		// the permits cover preparing, merging and writing; a stream holds
+		// them until written
+		List<AdmissionControl.Permit> permits = acquirePermits(plotters);
+		try {
+			prepareExports(components, plotters, cmtBits);
+			// a component without data gets blank columns, but not all of them
+			boolean empty = true;
+			for (RawDataPlotter plotter : plotters)
+				empty = empty && !plotter.hasExportRows();
+			if (empty)
+				throw new Valve3Exception("No data to export");
+
+			StringBuffer fn = new StringBuffer(df.format(now));
+			for (String source : fn_sources)
+				fn.append('_').append(source.replaceAll("-", "_"));
+			MergedExport export = new MergedExport(plotters, labels);
+			if (stream) {
+				ExportStream es = new ExportStream(fn + ".csv", export, permits, Valve3.getInstance().isExportGzip());
+				permits = null;
+				return es;
+			}
+
+			String outFileName = fn + ".csv";
+			String outFilePath = Valve3.getInstance().getApplicationPath() + File.separatorChar + "data" + File.separatorChar + outFileName;
+			try
+			{
+				Writer out = new BufferedWriter(new FileWriter(outFilePath));
+				try {
+					export.writeExport(out);
+				} finally {
+					out.close();
+				}
+			}
+			catch (IOException e)
+			{
+				LOGGER.info("RawDataHandler file error" );
+				throw new Valve3Exception(e.getMessage());
+			}
+			RawData rd = new RawData("data/" + outFileName, outFilePath);
+			Valve3.getInstance().getResultDeleter().addResult(rd);
+			return rd;
+		} finally {
+			if (permits != null)
+				for (AdmissionControl.Permit permit : permits)
+					permit.release();
+		}
+	}
+
+	/**
+	 * Acquire one admission permit per plotter class of a multi-source
+	 * export. Components of one class share the permit, so an export can't
+	 * wait on itself; classes are acquired in name order, so two exports
+	 * can't wait on each other.
+	 * @param plotters plotters of the export
+	 * @return permits, to release once the export is written
+	 * @throws Valve3Exception if a permit is refused, those already acquired
+	 * are released
+	 */
+	private List<AdmissionControl.Permit> acquirePermits(List<RawDataPlotter> plotters) throws Valve3Exception {
+		Map<String, RawDataPlotter> classes = new TreeMap<String, RawDataPlotter>();
+		for (RawDataPlotter plotter : plotters)
+			classes.put(plotter.getClass().getName(), plotter);
+		List<AdmissionControl.Permit> permits = new ArrayList<AdmissionControl.Permit>();
+		boolean acquired = false;
+		try {
+			for (RawDataPlotter plotter : classes.values())
+				permits.add(Valve3.getInstance().getAdmissionControl().acquire(plotter));
+			acquired = true;
+		} finally {
+			if (!acquired)
+				for (AdmissionControl.Permit permit : permits)
+					permit.release();
+		}
+		return permits;
+	}
+
+	/**
+	 * Prepare the exports of components in parallel: this thread takes the
+	 * first component, the export executor the others, at the priority of
+	 * this request. The caller holds the admission permits.
+	 * @param components components to export
+	 * @param plotters plotter of each component
+	 * @param cmtBits comment info of each component
+	 * @throws Valve3Exception failure of the first component that failed, in
+	 * request order
+	 */
+	private void prepareExports(List<PlotComponent> components, List<RawDataPlotter> plotters, List<Map<String,String>> cmtBits) throws Valve3Exception {
+		ExecutorService executor = dataHandler.getExportExecutor();
+		final boolean bulk = RequestPriority.isBulk();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		FutureTask<Object> first = null;
+		try {
+			for (int i = 0; i < components.size(); i++) {
+				final PlotComponent component = components.get(i);
+				final RawDataPlotter plotter = plotters.get(i);
+				final Map<String,String> bits = cmtBits.get(i);
+				Callable<Object> task = new Callable<Object>() {
+					public Object call() throws Valve3Exception {
+						// the executor may run a task on the calling thread
+						boolean wasBulk = RequestPriority.isBulk();
+						RequestPriority.setBulk(bulk);
+						try {
+							plotter.prepareExport(component, bits, true);
+						} finally {
+							RequestPriority.setBulk(wasBulk);
+						}
+						return null;
+					}
+				};
+				// this thread takes the first component itself
+				if (first == null) {
+					first = new FutureTask<Object>(task);
+					futures.add(first);
+				} else
+					futures.add(executor.submit(task));
+			}
+			first.run();
+			for (Future<Object> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new Valve3Exception("Export interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Valve3Exception)
+				throw (Valve3Exception)e.getCause();
+			throw new Valve3Exception(String.valueOf(e.getCause().getMessage()));
+		} finally {
+			for (Future<Object> future : futures)
+				future.cancel(true);
+		}
 	}
 }
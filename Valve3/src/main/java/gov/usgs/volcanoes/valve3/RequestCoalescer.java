@@ -0,0 +1,93 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical requests share one computation. The first
+ * request for a key computes the result on its own thread; requests with
+ * the same key arriving while it runs wait for it and get the same result
+ * object. Only results which can be sent more than once (plots, exports
+ * written to files) may be shared.
+ */
+public class RequestCoalescer
+{
+	private final ConcurrentHashMap<String, FutureTask<Object>> inFlight;
+	private final AtomicLong computed;
+	private final AtomicLong shared;
+
+	/**
+	 * Default constructor
+	 */
+	public RequestCoalescer()
+	{
+		inFlight = new ConcurrentHashMap<String, FutureTask<Object>>();
+		computed = new AtomicLong();
+		shared = new AtomicLong();
+	}
+
+	/**
+	 * Compute result, or wait for the identical computation in progress
+	 * @param key request key, see {@link RequestKey}
+	 * @param computation computes the result
+	 * @return result of computation
+	 * @throws Valve3Exception if interrupted while waiting or computation failed with checked exception
+	 */
+	public Object execute(String key, Callable<Object> computation) throws Valve3Exception
+	{
+		FutureTask<Object> task = new FutureTask<Object>(computation);
+		FutureTask<Object> running = inFlight.putIfAbsent(key, task);
+		if (running == null)
+		{
+			computed.incrementAndGet();
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				inFlight.remove(key, task);
+			}
+			running = task;
+		}
+		else
+			shared.incrementAndGet();
+
+		try
+		{
+			return running.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new Valve3Exception("Interrupted while waiting for identical request");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			if (cause instanceof Valve3Exception)
+				throw (Valve3Exception)cause;
+			throw new Valve3Exception(cause.getMessage());
+		}
+	}
+
+	/**
+	 * Add coalescing metrics to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		status.put("coalescer.computed", computed.get());
+		status.put("coalescer.shared", shared.get());
+		status.put("coalescer.inFlight", inFlight.size());
+	}
+}
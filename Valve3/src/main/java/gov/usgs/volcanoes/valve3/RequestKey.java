@@ -0,0 +1,43 @@
+package gov.usgs.volcanoes.valve3;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Canonical form of a request, used to recognize identical requests
+ * whose parameters are given in a different order.
+ */
+public class RequestKey
+{
+	private RequestKey()
+	{}
+
+	/**
+	 * Compute key of request: the request parameters sorted by name,
+	 * with the default time zone filled in.
+	 * @param request http request
+	 * @return canonical form of request parameters
+	 */
+	public static String of(HttpServletRequest request)
+	{
+		// Not using generics because HttpServletRequest is Java 1.4
+		Map parameters = request.getParameterMap();
+		TreeMap<String, String> sorted = new TreeMap<String, String>();
+		for (Object k : parameters.keySet())
+		{
+			String[] values = (String[])parameters.get(k);
+			if (values != null && values.length > 0)
+				sorted.put((String)k, values[0]);
+		}
+		String tz = sorted.get("tz");
+		if (tz == null || tz.equals(""))
+			sorted.put("tz", Valve3.getInstance().getTimeZoneAbbr());
+
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> e : sorted.entrySet())
+			sb.append(e.getKey()).append('=').append(e.getValue()).append('&');
+		return sb.toString();
+	}
+}
@@ -1,111 +1,236 @@
 package gov.usgs.volcanoes.valve3;
 
+import gov.usgs.volcanoes.valve3.result.RawData;
 import gov.usgs.volcanoes.valve3.result.Result;
+import gov.usgs.volcanoes.valve3.result.Status;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Keeps list of {@link Entry}s to manage result set
- * 
+ * Deletes generated results (plot image files, raw data files) after they
+ * expire, and oldest first whenever their files under img/ and data/ exceed
+ * the quota. Results are queued in order of creation and swept by a
+ * scheduled task, so expired results are always at the head of the queue.
+ *
+ * Raw data files are downloaded once, they are deleted shortly after their
+ * first complete download. Plot images, and raw data files handed to more
+ * than one request, are kept until they expire, since others share them.
+ *
  * $Log: not supported by cvs2svn $
  * @author Dan Cervelli
  */
-public class ResultDeleter extends Thread
+public class ResultDeleter
 {
-	private static final int DELETE_DELAY = 60 * 1000;
-	private static final int DELETE_THRESHOLD =  10 * 60 * 1000;
-	private List<Entry> results;
-	private boolean kill = false;
+	public static final long DEFAULT_THRESHOLD = 10 * 60 * 1000;
+	public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+	private static final long DELETE_DELAY = 60 * 1000;
+	// a downloaded file is kept this long for retries of the download
+	private static final long DOWNLOAD_GRACE = 60 * 1000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResultDeleter.class);
+
+	private final ConcurrentLinkedQueue<Entry> results;
+	private final ConcurrentHashMap<String, Entry> downloads;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicLong size;
+	private final AtomicLong expired;
+	private final AtomicLong evicted;
+	private final AtomicLong downloaded;
+	private volatile long threshold;
+	private volatile long maxBytes;
 
 	/**
-	 * Default constructor
+	 * Default constructor, starts the sweep task
 	 */
 	public ResultDeleter()
 	{
-		results = new ArrayList<Entry>(100);
+		results = new ConcurrentLinkedQueue<Entry>();
+		downloads = new ConcurrentHashMap<String, Entry>();
+		size = new AtomicLong();
+		expired = new AtomicLong();
+		evicted = new AtomicLong();
+		downloaded = new AtomicLong();
+		threshold = DEFAULT_THRESHOLD;
+		maxBytes = DEFAULT_MAX_BYTES;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "result-deleter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		scheduler.scheduleWithFixedDelay(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						deleteResults(false);
+					}
+					catch (Exception e)
+					{
+						LOGGER.error("Result sweep failed", e);
+					}
+				}
+			}, DELETE_DELAY, DELETE_DELAY, TimeUnit.MILLISECONDS);
 	}
-	
+
 	/**
-	 * Kills execution thread
+	 * Set limits
+	 * @param threshold time in ms after which results are deleted
+	 * @param maxBytes maximum total size of result files
 	 */
-	public void kill()
+	public void configure(long threshold, long maxBytes)
 	{
-		kill = true;
-		this.interrupt();
+		this.threshold = threshold;
+		this.maxBytes = maxBytes;
 	}
-	
+
 	/**
-	 * Adds new entry to managed list
-	 * @param result {@link Result} contained in the entry
+	 * Stops the sweep task
 	 */
-	public synchronized void addResult(Result result)
+	public void kill()
 	{
-		results.add(new Entry(result));
+		scheduler.shutdownNow();
 	}
 
 	/**
-	 * Delete entry from managed list
-	 * @param i Serial number of entry to delete
+	 * Adds new result to be deleted later, deleting the oldest results if the
+	 * quota is exceeded
+	 * @param result {@link Result} to manage
 	 */
-	private synchronized void deleteResult(int i)
+	public void addResult(Result result)
 	{
-		results.remove(i);
+		Entry entry = new Entry(result);
+		results.add(entry);
+		if (result instanceof RawData)
+			downloads.put(result.getURL(), entry);
+		if (size.addAndGet(entry.size) > maxBytes)
+		{
+			Entry oldest;
+			while (size.get() > maxBytes && (oldest = results.poll()) != null)
+			{
+				if (delete(oldest))
+					evicted.incrementAndGet();
+			}
+		}
 	}
-	
+
 	/**
-	 * Deletes entries from managed list
-	 * @param force if true, deletes all entries. If false, deletes only old ones, older then DELETE_THRESHOLD ms.
+	 * Report complete download of a result file; raw data files are deleted
+	 * after a grace period
+	 * @param url result URL, for example "data/export.csv"
 	 */
-	public void deleteResults(boolean force)
+	public void downloaded(String url)
 	{
-		long now = System.currentTimeMillis();
-		for (int i = 0; i < results.size(); i++)
+		final Entry entry = downloads.get(url);
+		if (entry == null || entry.shared)
+			return;
+		try
 		{
-			Entry e = results.get(i);
-			if (force || (now - e.time > DELETE_THRESHOLD))
-			{
-				e.result.delete();
-				deleteResult(i);
-				i--;
-			}
+			scheduler.schedule(new Runnable()
+				{
+					public void run()
+					{
+						// may have been shared after the download
+						if (!entry.shared && delete(entry))
+							downloaded.incrementAndGet();
+					}
+				}, DOWNLOAD_GRACE, TimeUnit.MILLISECONDS);
+		}
+		catch (RuntimeException e)
+		{
+			// shutting down, deleteResults(true) cleans up
 		}
 	}
-	
+
+	/**
+	 * Mark a raw data result as received by more than one request, it is
+	 * then kept until it expires instead of being deleted on download
+	 * @param result shared result
+	 */
+	public void shared(Result result)
+	{
+		Entry entry = downloads.get(result.getURL());
+		if (entry != null)
+			entry.shared = true;
+	}
+
 	/**
-	 * Main execution thread. Call deleteResults() in non-force manner every DELETE_DELAY ms
+	 * Deletes results
+	 * @param force if true, deletes all results. If false, deletes only those older than the threshold.
 	 */
-	public void run()
+	public void deleteResults(boolean force)
 	{
-		while (!kill)
+		long oldest = System.currentTimeMillis() - threshold;
+		for (Iterator<Entry> it = results.iterator(); it.hasNext(); )
 		{
-			try
-			{
-				Thread.sleep(DELETE_DELAY);
-				deleteResults(false);
-			}
-			catch (InterruptedException e)
-			{}
-			catch (Exception e)
-			{
-				e.printStackTrace();
-			}
+			Entry e = it.next();
+			if (!force && e.time > oldest)
+				break;
+			it.remove();
+			if (delete(e))
+				expired.incrementAndGet();
 		}
 	}
 
 	/**
-	 * Supporting class, entry in managed list, keeps result and it's time
-	 *
+	 * Add result metrics to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		status.put("results.count", results.size());
+		status.put("results.size", size.get());
+		status.put("results.expired", expired.get());
+		status.put("results.evicted", evicted.get());
+		status.put("results.downloaded", downloaded.get());
+	}
+
+	/**
+	 * Delete result of entry unless already done
+	 * @return true if entry was deleted by this call
+	 */
+	private boolean delete(Entry e)
+	{
+		if (!e.deleted.compareAndSet(false, true))
+			return false;
+		e.result.delete();
+		size.addAndGet(-e.size);
+		if (e.result instanceof RawData)
+			downloads.remove(e.result.getURL(), e);
+		return true;
+	}
+
+	/**
+	 * Supporting class, entry in managed queue, keeps result, its time and file size
 	 */
-	private class Entry
+	private static class Entry
 	{
-		public long time;
-		public Result result;
-		
-		public Entry(Result r)
+		final long time;
+		final long size;
+		final Result result;
+		final AtomicBoolean deleted;
+		volatile boolean shared;
+
+		Entry(Result r)
 		{
 			time = System.currentTimeMillis();
 			result = r;
+			size = r.getSize();
+			deleted = new AtomicBoolean(false);
 		}
 	}
 }
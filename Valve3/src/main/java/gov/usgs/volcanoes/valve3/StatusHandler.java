@@ -0,0 +1,39 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reports cache and store metrics, used to size them.
+ * Request: valve3.jsp?a=status
+ */
+public class StatusHandler implements HttpHandler
+{
+	/**
+	 * Collect status of application's caches and stores
+	 * @see HttpHandler#handle
+	 */
+	public Object handle(HttpServletRequest request)
+	{
+		Valve3 v3 = Valve3.getInstance();
+		Status status = new Status();
+
+		PlotCache plotCache = v3.getPlotCache();
+		if (plotCache != null)
+			plotCache.addStatus(status);
+
+		v3.getDispatcher().addStatus(status);
+		v3.getAdmissionControl().addStatus(status);
+		v3.getExportJobs().addStatus(status);
+		v3.getRequestCoalescer().addStatus(status);
+		v3.getResultDeleter().addStatus(status);
+		v3.getDataHandler().addStatus(status);
+
+		ImageStore imageStore = v3.getImageStore();
+		status.put("imageStore.count", imageStore.getCount());
+		status.put("imageStore.size", imageStore.getSize());
+
+		return status;
+	}
+}
@@ -1,6 +1,7 @@
 package gov.usgs.volcanoes.valve3;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
+import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoImageSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.vdx.ExportConfig;
@@ -75,12 +76,21 @@ public class Valve3 implements ServletContextListener
 	private String installationTitle = "Valve Installation";
 	private String timeZoneAbbr = "UTC";
 	private String openDataURL = "";
+	private boolean exportStream = true;
+	private boolean exportGzip = true;
+	private boolean imageMemory = true;
 
 	private GeoImageSet imageSet;
 	private GeoLabelSet labelSet;
 	private ConfigFile defaults;
 
 	private ResultDeleter resultDeleter;
+	private ImageStore imageStore;
+	private PlotCache plotCache;
+	private RequestCoalescer requestCoalescer;
+	private Dispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private ExportJobs exportJobs;
 
 	private HashMap<String,ExportConfig> exportConfigs;
 
@@ -93,7 +103,8 @@ public class Valve3 implements ServletContextListener
 		org.apache.log4j.Logger.getLogger("gov.usgs.volcanoes.core.util").setLevel(Level.INFO);
 		org.apache.log4j.Logger.getLogger("gov.usgs.volcanoes.core.legacy.net").setLevel(Level.ERROR);
 		resultDeleter = new ResultDeleter();
-		resultDeleter.start();
+		imageStore = new ImageStore(ImageStore.DEFAULT_MAX_BYTES);
+		requestCoalescer = new RequestCoalescer();
 		exportConfigs = new HashMap<String,ExportConfig>();
 	}
 
@@ -120,6 +131,35 @@ public class Valve3 implements ServletContextListener
 		if (openDataURL == null)
 			openDataURL = "";
 		LOGGER.info("openDataURL: {}", openDataURL);
+		exportStream = StringUtils.stringToBoolean(config.getString("exportStream"), true);
+		exportGzip = StringUtils.stringToBoolean(config.getString("exportGzip"), true);
+		LOGGER.info("exportStream: {}, exportGzip: {}", exportStream, exportGzip);
+		imageMemory = StringUtils.stringToBoolean(config.getString("imageMemory"), true);
+		int iss = StringUtils.stringToInt(config.getString("imageStoreSize"), (int)(ImageStore.DEFAULT_MAX_BYTES / (1024 * 1024)));
+		imageStore = new ImageStore(iss * 1024L * 1024L);
+		LOGGER.info("imageMemory: {}, imageStoreSize: {}", imageMemory, iss);
+		int pcMax = StringUtils.stringToInt(config.getString("plotCache.maxEntries"), PlotCache.DEFAULT_MAX_ENTRIES);
+		if (pcMax > 0)
+		{
+			long pcTtl = StringUtils.stringToInt(config.getString("plotCache.ttl"), (int)PlotCache.DEFAULT_TTL);
+			long pcRelTtl = StringUtils.stringToInt(config.getString("plotCache.relativeTtl"), (int)PlotCache.DEFAULT_RELATIVE_TTL);
+			int pcSize = StringUtils.stringToInt(config.getString("plotCache.size"), (int)(PlotCache.DEFAULT_MAX_BYTES / (1024 * 1024)));
+			plotCache = new PlotCache(pcTtl, pcRelTtl, pcMax, pcSize * 1024L * 1024L);
+			LOGGER.info("plotCache.maxEntries: {}, ttl: {}, relativeTtl: {}, size: {}", pcMax, pcTtl, pcRelTtl, pcSize);
+		}
+
+		long resultTtl = StringUtils.stringToInt(config.getString("results.ttl"), (int)ResultDeleter.DEFAULT_THRESHOLD);
+		int resultQuota = StringUtils.stringToInt(config.getString("results.quota"), (int)(ResultDeleter.DEFAULT_MAX_BYTES / (1024 * 1024)));
+		resultDeleter.configure(resultTtl, resultQuota * 1024L * 1024L);
+		LOGGER.info("results.ttl: {}, results.quota: {}", resultTtl, resultQuota);
+
+		if (dispatcher != null)
+			dispatcher.shutdown();
+		dispatcher = new Dispatcher(config);
+		admissionControl = new AdmissionControl(config, dispatcher.getRetryAfter());
+		if (exportJobs != null)
+			exportJobs.shutdown();
+		exportJobs = new ExportJobs(config, dispatcher.getRetryAfter());
 
 		imageSet = new GeoImageSet(config.getString("imageIndex"));
 		String ics = config.getString("imageCacheSize");
@@ -138,6 +178,60 @@ public class Valve3 implements ServletContextListener
 		return resultDeleter;
 	}
 
+	/**
+	 * Getter for image store
+	 * @return store of in-memory plot images
+	 */
+	public ImageStore getImageStore()
+	{
+		return imageStore;
+	}
+
+	/**
+	 * Getter for plot cache
+	 * @return cache of rendered plots, null if disabled
+	 */
+	public PlotCache getPlotCache()
+	{
+		return plotCache;
+	}
+
+	/**
+	 * Getter for request coalescer
+	 * @return coalescer shared by plot and raw data requests
+	 */
+	public RequestCoalescer getRequestCoalescer()
+	{
+		return requestCoalescer;
+	}
+
+	/**
+	 * Getter for dispatcher
+	 * @return worker pools requests are handled on
+	 */
+	public Dispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	/**
+	 * Getter for admission control
+	 * @return limits of concurrent plotters
+	 */
+	public AdmissionControl getAdmissionControl()
+	{
+		return admissionControl;
+	}
+
+	/**
+	 * Getter for export jobs
+	 * @return raw data exports running in the background
+	 */
+	public ExportJobs getExportJobs()
+	{
+		return exportJobs;
+	}
+
 	/**
 	 * Implementation of Singleton pattern
 	 * @return Valve3
@@ -171,7 +265,7 @@ public class Valve3 implements ServletContextListener
 	 * Getter for data handler
 	 * @return data handler
 	 */
-	public DataHandler getDataHandler()
+	public synchronized DataHandler getDataHandler()
 	{
 		if (dataHandler == null)
 			dataHandler = new DataHandler();
@@ -190,10 +284,13 @@ public class Valve3 implements ServletContextListener
 			actionHandler = new ActionHandler("a");
 			DataHandler dh = getDataHandler();
 			actionHandler.getHandlers().put("data", dh);
-			actionHandler.getHandlers().put("rawData", new RawDataHandler(dh));
+			RawDataHandler rdh = new RawDataHandler(dh);
+			actionHandler.getHandlers().put("rawData", rdh);
+			actionHandler.getHandlers().put("exportJob", new ExportJobHandler(rdh));
 			actionHandler.getHandlers().put("plot", new PlotHandler(dh));
 			MenuHandler mh = getMenuHandler();
 			actionHandler.getHandlers().put("menu", mh);
+			actionHandler.getHandlers().put("status", new StatusHandler());
 		}
 
 		return actionHandler;
@@ -288,6 +385,30 @@ public class Valve3 implements ServletContextListener
 		return openDataURL;
 	}
 
+	/**
+	 * Getter for streamed export flag
+	 * @return true if text exports are written straight to the response
+	 */
+	public boolean isExportStream() {
+		return exportStream;
+	}
+
+	/**
+	 * Getter for export compression flag
+	 * @return true if streamed exports may be gzip-compressed
+	 */
+	public boolean isExportGzip() {
+		return exportGzip;
+	}
+
+	/**
+	 * Getter for in-memory image flag
+	 * @return true if plots are rendered in memory instead of to files in img/
+	 */
+	public boolean isImageMemory() {
+		return imageMemory;
+	}
+
 	/**
 	 * Getter for export config for data source
 	 * @param source data source name
@@ -322,7 +443,13 @@ public class Valve3 implements ServletContextListener
 	 */
 	public void contextDestroyed(ServletContextEvent sce)
 	{
+		if (dispatcher != null)
+			dispatcher.shutdown();
+		if (exportJobs != null)
+			exportJobs.shutdown();
 		resultDeleter.kill();
 		resultDeleter.deleteResults(true);
+		if (dataHandler != null)
+			dataHandler.shutdown();
 	}
 }
@@ -0,0 +1,347 @@
+package gov.usgs.volcanoes.valve3;
+
+import gov.usgs.volcanoes.core.util.StringUtils;
+import gov.usgs.volcanoes.valve3.data.RequestPriority;
+import gov.usgs.volcanoes.valve3.result.BusyMessage;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.valve3.result.ExportStream;
+import gov.usgs.volcanoes.valve3.result.RawData;
+import gov.usgs.volcanoes.valve3.result.Result;
+import gov.usgs.volcanoes.valve3.result.Valve3Plot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Front controller of valve3.jsp requests. Requests are handled
+ * asynchronously on the {@link Dispatcher} pool of their action, so the
+ * container thread is released at once and a burst of slow exports can't
+ * hold up menu and plot requests. A request which isn't handled in the
+ * pool's time limit (waiting in the queue included) is answered with 503
+ * and its handling interrupted; once the result is being written there is
+ * no limit, so long downloads aren't cut off. Requests refused because a
+ * queue is full, here or by {@link AdmissionControl}, get a 503 with a
+ * Retry-After header.
+ */
+public class Valve3Servlet extends HttpServlet
+{
+	private static final long serialVersionUID = 1L;
+	private static final Logger LOGGER = LoggerFactory.getLogger(Valve3Servlet.class);
+
+	/**
+	 * @see HttpServlet#doGet
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("Pragma", "no-cache");
+		response.setDateHeader("Expires", 0);
+
+		Valve3 v3 = Valve3.getInstance();
+		final Dispatcher dispatcher = v3.getDispatcher();
+		final Dispatcher.Pool pool = dispatcher.getPool(StringUtils.stringToString(request.getParameter("a"), "plot"));
+		final AsyncContext ctx = request.startAsync();
+		// time limit is kept by the dispatcher, it must not apply to writing
+		ctx.setTimeout(0);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final Future<?>[] task = new Future<?>[1];
+		final Future<?>[] timeout = new Future<?>[1];
+
+		ctx.addListener(new AsyncListener()
+			{
+				public void onComplete(AsyncEvent event) {}
+				public void onStartAsync(AsyncEvent event) {}
+				public void onTimeout(AsyncEvent event) {}
+				public void onError(AsyncEvent event)
+				{
+					// client went away
+					if (!done.compareAndSet(false, true))
+						return;
+					synchronized (task)
+					{
+						if (task[0] != null)
+							task[0].cancel(true);
+					}
+					cancel(timeout);
+					complete(event.getAsyncContext());
+				}
+			});
+
+		try
+		{
+			synchronized (task)
+			{
+				task[0] = pool.submit(new Runnable()
+					{
+						public void run()
+						{
+							handle(ctx, pool, done, timeout);
+						}
+					});
+			}
+		}
+		catch (RejectedExecutionException e)
+		{
+			LOGGER.warn("Too many {} requests, rejected {}", pool.getName(), request.getQueryString());
+			done.set(true);
+			sendError(ctx, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy", dispatcher.getRetryAfter());
+			return;
+		}
+
+		Future<?> limit = dispatcher.schedule(new Runnable()
+			{
+				public void run()
+				{
+					if (!done.compareAndSet(false, true))
+						return;
+					pool.timedOut();
+					synchronized (task)
+					{
+						task[0].cancel(true);
+					}
+					LOGGER.warn("Timed out: {}", ((HttpServletRequest)ctx.getRequest()).getQueryString());
+					sendError(ctx, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Request timed out", dispatcher.getRetryAfter());
+				}
+			}, pool.getTimeout());
+		synchronized (timeout)
+		{
+			timeout[0] = limit;
+		}
+		// the request may have ended before its time limit was set
+		if (done.get())
+			cancel(timeout);
+	}
+
+	/**
+	 * @see HttpServlet#doPost
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+	{
+		doGet(request, response);
+	}
+
+	/**
+	 * Handle request on pool thread, at the priority of the pool
+	 */
+	private void handle(AsyncContext ctx, Dispatcher.Pool pool, AtomicBoolean done, Future<?>[] timeout)
+	{
+		HttpServletRequest request = (HttpServletRequest)ctx.getRequest();
+		HttpServletResponse response = (HttpServletResponse)ctx.getResponse();
+		// exports are bulk work, also while they are written
+		RequestPriority.setBulk(pool.isBulk());
+		try
+		{
+			handleAndWrite(ctx, request, response, done, timeout);
+		}
+		finally
+		{
+			RequestPriority.setBulk(false);
+		}
+	}
+
+	/**
+	 * Handle request and write the result, unless the request timed out
+	 * meanwhile
+	 */
+	private void handleAndWrite(AsyncContext ctx, HttpServletRequest request, HttpServletResponse response, AtomicBoolean done, Future<?>[] timeout)
+	{
+		Object result;
+		try
+		{
+			result = Valve3.getInstance().getActionHandler().handle(request);
+		}
+		catch (Valve3Exception e)
+		{
+			result = new ErrorMessage(e.getMessage());
+		}
+		catch (Throwable e)
+		{
+			// errors too, or the request would be left open until it times out
+			if (!done.compareAndSet(false, true))
+				return;
+			cancel(timeout);
+			LOGGER.error("Request failed: {}", request.getQueryString(), e);
+			sendError(ctx, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null, 0);
+			return;
+		}
+		// timed out or client gone, the other side completes the request
+		if (!done.compareAndSet(false, true))
+		{
+			if (result instanceof ExportStream)
+				((ExportStream)result).release();
+			return;
+		}
+		cancel(timeout);
+
+		try
+		{
+			writeResult(request, response, result);
+		}
+		catch (Throwable e)
+		{
+			LOGGER.info("Can't write result of {}: {}", request.getQueryString(), e.toString());
+		}
+		finally
+		{
+			if (result instanceof ExportStream)
+				((ExportStream)result).release();
+			complete(ctx);
+		}
+	}
+
+	/**
+	 * Write result, as valve3.jsp did
+	 */
+	private void writeResult(HttpServletRequest request, HttpServletResponse response, Object result) throws IOException
+	{
+		if (result == null)
+		{
+			response.setContentType("text/html");
+			PrintWriter out = response.getWriter();
+			out.println("<html>");
+			out.println("<body>");
+			out.println("<p>Please use the <a href=\"index.jsp\">main user interface</a>.</p>");
+			out.println("</body>");
+			out.println("</html>");
+		}
+		else if (result instanceof Valve3Plot)
+		{
+			Valve3Plot plot = (Valve3Plot)result;
+			response.setContentType(plot.getMimeType());
+			switch (plot.getOutputType())
+			{
+				case XML:
+					response.getWriter().println(plot.toXML());
+					break;
+				case PS:
+					String fileName = plot.getTitle().replace(" ", "_") + ".ps";
+					response.setHeader("Content-disposition", "attachment; filename=" + fileName);
+					/* fallthrough */
+				case PNG:
+					byte[] image = plot.getImage();
+					if (image != null)
+					{
+						response.setContentLength(image.length);
+						OutputStream os = response.getOutputStream();
+						os.write(image);
+						os.flush();
+					}
+					else
+						FileServlet.send(request, response, new File(plot.getLocalFilename()), plot.getMimeType());
+					break;
+				case HTML:
+					PrintWriter out = response.getWriter();
+					out.println("<html>");
+					out.println("<head>");
+					out.println("<title>" + plot.getTitle() + "</title>");
+					out.println("</head>");
+					out.println("<body>");
+					out.println("<img src=\"" + plot.getFilename() + "\">");
+					out.println("</body>");
+					out.println("</html>");
+					break;
+			}
+		}
+		else if (result instanceof ExportStream)
+		{
+			ExportStream es = (ExportStream)result;
+			String ae = request.getHeader("Accept-Encoding");
+			boolean gzip = es.isCompressible() && ae != null && ae.indexOf("gzip") != -1;
+
+			response.setContentType("application/octet-stream");
+			response.setHeader("Content-disposition", "attachment;filename=" + es.getFilename());
+			response.setHeader("Vary", "Accept-Encoding");
+			if (gzip)
+				response.setHeader("Content-Encoding", "gzip");
+
+			OutputStream os = response.getOutputStream();
+			es.writeTo(os, gzip);
+			os.flush();
+		}
+		else if (result instanceof RawData)
+		{
+			RawData rd = (RawData)result;
+			String fn = rd.getLocalFilename();
+
+			response.setHeader("Content-disposition", "attachment;filename=" + fn.substring(fn.lastIndexOf("/") + 1));
+			if (FileServlet.send(request, response, new File(fn), "application/octet-stream"))
+				Valve3.getInstance().getResultDeleter().downloaded(rd.getURL());
+		}
+		else if (result instanceof BusyMessage)
+		{
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.setIntHeader("Retry-After", ((BusyMessage)result).getRetryAfter());
+			response.setContentType("text/xml");
+			response.getWriter().println(((BusyMessage)result).toXML());
+		}
+		else if (result instanceof Result)
+		{
+			response.setContentType("text/xml");
+			response.getWriter().println(((Result)result).toXML());
+		}
+		else if (result instanceof String)
+		{
+			response.setHeader("Content-disposition", "attachment; filename=valve3.csv");
+			response.getWriter().println(result);
+		}
+	}
+
+	private static void sendError(AsyncContext ctx, int status, String message, int retryAfter)
+	{
+		HttpServletResponse response = (HttpServletResponse)ctx.getResponse();
+		try
+		{
+			if (!response.isCommitted())
+			{
+				if (retryAfter > 0)
+					response.setIntHeader("Retry-After", retryAfter);
+				response.sendError(status, message);
+			}
+		}
+		catch (Exception e)
+		{
+			// client gone
+		}
+		complete(ctx);
+	}
+
+	/**
+	 * Cancel the time limit of a request which ended
+	 */
+	private static void cancel(Future<?>[] timeout)
+	{
+		synchronized (timeout)
+		{
+			if (timeout[0] != null)
+				timeout[0].cancel(false);
+		}
+	}
+
+	private static void complete(AsyncContext ctx)
+	{
+		try
+		{
+			ctx.complete();
+		}
+		catch (IllegalStateException e)
+		{
+			// already completed by the container
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.util.UtilException;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches binary data of several channels from one vdx source, spreading
+ * the per-channel requests over several pooled VDXClients. The calling
+ * thread takes part in the work, so a request always makes progress even
+ * when the executor is busy.
+ */
+public class ChannelFetcher
+{
+	public static final int DEFAULT_MAX_PARALLEL = 4;
+	private static final Logger LOGGER = LoggerFactory.getLogger(ChannelFetcher.class);
+
+	private final DataHandler dataHandler;
+	private final ExecutorService executor;
+
+	/**
+	 * Constructor
+	 * @param dataHandler owner of the VDX client pools
+	 * @param executor executor running the helper fetches
+	 */
+	public ChannelFetcher(DataHandler dataHandler, ExecutorService executor)
+	{
+		this.dataHandler = dataHandler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Request binary data for each channel. Every request gets the given parameters
+	 * plus "ch" set to the channel. Time series are served from the data cache where
+	 * possible, see {@link DataCache}.
+	 * @param vdxClient vdx name in data.config
+	 * @param params request parameters shared by all channels
+	 * @param channels channel ids
+	 * @return data objects in channel order, entries may be null; null if the vdx is unknown
+	 * @throws Valve3Exception with message of the first (in channel order) failed request
+	 */
+	public List<Object> fetch(String vdxClient, Map<String, String> params, String[] channels) throws Valve3Exception
+	{
+		VDXClientPool pool = dataHandler.getVDXClient(vdxClient);
+		if (pool == null)
+			return null;
+
+		DataCache dataCache = dataHandler.getDataCache();
+		if (dataCache == null || !dataCache.accepts(params))
+		{
+			List<Map<String, String>> requests = new ArrayList<Map<String, String>>(channels.length);
+			for (String channel : channels)
+			{
+				Map<String, String> channelParams = new LinkedHashMap<String, String>(params);
+				channelParams.put("ch", channel);
+				requests.add(channelParams);
+			}
+			return Arrays.asList(fetchAll(pool, vdxClient, requests));
+		}
+
+		DataCache.Plan[] plans = new DataCache.Plan[channels.length];
+		List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < channels.length; i++)
+		{
+			plans[i] = dataCache.plan(vdxClient, params, channels[i]);
+			requests.addAll(plans[i].getRequests());
+		}
+		Object[] fetched = fetchAll(pool, vdxClient, requests);
+		Object[] results = new Object[channels.length];
+		int offset = 0;
+		for (int i = 0; i < channels.length; i++)
+		{
+			results[i] = plans[i].complete(fetched, offset);
+			offset += plans[i].getRequests().size();
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Send requests, spread over several clients of the pool
+	 * @param pool client pool of the vdx
+	 * @param vdxClient vdx name in data.config
+	 * @param requests request parameters, channel included
+	 * @return data objects in request order, entries may be null
+	 * @throws Valve3Exception with message of the first (in request order) failed request
+	 */
+	private Object[] fetchAll(final VDXClientPool pool, String vdxClient, final List<Map<String, String>> requests) throws Valve3Exception
+	{
+		final int count = requests.size();
+		final Object[] results = new Object[count];
+		final String[] errors = new String[count];
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger firstError = new AtomicInteger(count);
+		// helpers work at the priority of the calling request
+		final boolean bulk = RequestPriority.isBulk();
+
+		Runnable worker = new Runnable()
+			{
+				public void run()
+				{
+					VDXClient client = null;
+					try
+					{
+						int i;
+						while ((i = next.getAndIncrement()) < firstError.get())
+						{
+							try
+							{
+								if (client == null)
+									client = pool.checkout(bulk);
+								results[i] = client.getBinaryData(requests.get(i));
+							}
+							catch (Exception e)
+							{
+								if (client != null && !(e instanceof UtilException))
+								{
+									// connection failed, continue with a new one
+									pool.invalidate(client);
+									pool.checkin(client);
+									client = null;
+								}
+								errors[i] = e.getMessage();
+								int current;
+								while (i < (current = firstError.get()) && !firstError.compareAndSet(current, i))
+									;
+							}
+						}
+					}
+					finally
+					{
+						if (client != null)
+							pool.checkin(client);
+					}
+				}
+			};
+
+		// helpers are started first, the calling thread then works along with them
+		int helpers = Math.min(count, dataHandler.getMaxParallelFetch(vdxClient)) - 1;
+		List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+		for (int i = 0; i < helpers; i++)
+		{
+			FutureTask<Object> task = new FutureTask<Object>(worker, null);
+			try
+			{
+				executor.execute(task);
+				tasks.add(task);
+			}
+			catch (RejectedExecutionException e)
+			{
+				break;
+			}
+		}
+		worker.run();
+
+		// helpers that haven't started have nothing left to do
+		for (FutureTask<Object> task : tasks)
+		{
+			if (task.cancel(false))
+				continue;
+			try
+			{
+				task.get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new Valve3Exception("Interrupted while fetching data");
+			}
+			catch (ExecutionException e)
+			{
+				LOGGER.error("Channel fetch failed", e.getCause());
+				throw new Valve3Exception(String.valueOf(e.getCause().getMessage()));
+			}
+		}
+
+		int failed = firstError.get();
+		if (failed < count)
+			throw new Valve3Exception(errors[failed]);
+
+		return results;
+	}
+}
@@ -0,0 +1,542 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.core.math.DownsamplingType;
+import gov.usgs.volcanoes.core.time.J2kSec;
+import gov.usgs.volcanoes.valve3.result.Status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
+/**
+ * Keeps time series data fetched from VDX in chunks aligned to multiples of
+ * the chunk length, so requests for nearly the same window, like a dashboard
+ * refreshing a 30 day RSAM plot, only fetch the chunks they don't share with
+ * earlier requests and stitch the rest from memory. Chunks are keyed by vdx,
+ * request parameters except the time window (source, rank, plot type...),
+ * channel and chunk index.
+ *
+ * Chunks ending less than the settle time before now may still receive data;
+ * they are fetched on every request and never kept. Downsampled requests and
+ * windows without a finite end are not cached.
+ *
+ * Only GenericDataMatrix (RSAMData and other subclasses included) and Wave
+ * data can be cut into chunks. Until a request key has returned one of those
+ * its requests are fetched whole, as without the cache; the chunks covered by
+ * that first response are kept. Least recently used chunks are dropped when
+ * the size of the kept data exceeds the limit.
+ *
+ * With a {@link DiskChunkStore}, chunks older than the disk age are also
+ * written to disk, and chunks missing in memory are looked up there before
+ * asking VDX.
+ */
+public class DataCache
+{
+	public static final int DEFAULT_CHUNK = 3600;
+	public static final int DEFAULT_SETTLE = 600;
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	// longer windows are fetched whole rather than planned chunk by chunk
+	private static final int MAX_CHUNKS = 100000;
+	private static final int MAX_KEYS = 10000;
+	private static final int ENTRY_OVERHEAD = 128;
+
+	// kept for settled chunks without data
+	private static final Object EMPTY = new Object();
+
+	private final double chunk;
+	private final double settle;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries;
+	private final Set<String> chunkedKeys;
+	private DiskChunkStore diskStore;
+	private double diskAge;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Constructor
+	 * @param chunk chunk length, seconds
+	 * @param settle time in seconds after which data no longer change
+	 * @param maxBytes maximum size of kept data
+	 */
+	public DataCache(double chunk, double settle, long maxBytes)
+	{
+		this.chunk = chunk;
+		this.settle = settle;
+		this.maxBytes = maxBytes;
+		entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+		chunkedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	}
+
+	/**
+	 * Check if data request can be served from the cache
+	 * @param params request parameters, without channel
+	 * @return true if request has a finite time window ending before the next chunk and isn't downsampled
+	 */
+	public boolean accepts(Map<String, String> params)
+	{
+		String ds = params.get("ds");
+		if (ds != null && !ds.equals(DownsamplingType.NONE.toString()))
+			return false;
+		double st = parseTime(params.get("st"));
+		double et = parseTime(params.get("et"));
+		return !Double.isNaN(st) && !Double.isNaN(et) && st < et
+			&& et < J2kSec.now() + chunk && (et - st) / chunk < MAX_CHUNKS;
+	}
+
+	/**
+	 * Plan the VDX requests needed for one channel
+	 * @param vdxClient vdx name in data.config
+	 * @param params request parameters accepted by {@link #accepts}, without channel
+	 * @param channel channel id
+	 * @return plan listing the requests to send
+	 */
+	public Plan plan(String vdxClient, Map<String, String> params, String channel)
+	{
+		return new Plan(vdxClient, params, channel);
+	}
+
+	/**
+	 * Set second level store for historical chunks
+	 * @param diskStore disk store
+	 * @param diskAge time in seconds after which chunks are written to disk
+	 */
+	public void setDiskStore(DiskChunkStore diskStore, double diskAge)
+	{
+		this.diskStore = diskStore;
+		this.diskAge = diskAge;
+	}
+
+	/**
+	 * Drop all chunks kept in memory
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Add cache metrics to status
+	 * @param status status to fill
+	 */
+	public synchronized void addStatus(Status status)
+	{
+		status.put("dataCache.hits", hits);
+		status.put("dataCache.misses", misses);
+		status.put("dataCache.evictions", evictions);
+		status.put("dataCache.count", entries.size());
+		status.put("dataCache.size", size);
+		if (diskStore != null)
+			diskStore.addStatus(status);
+	}
+
+	private Object get(String key)
+	{
+		synchronized (this)
+		{
+			Entry entry = entries.get(key);
+			if (entry != null)
+			{
+				hits++;
+				return entry.data;
+			}
+			misses++;
+		}
+		if (diskStore == null)
+			return null;
+		Object data = diskStore.get(key, EMPTY);
+		if (data != null)
+			putMemory(key, data);
+		return data;
+	}
+
+	private void put(String key, long index, Object data)
+	{
+		putMemory(key, data);
+		if (diskStore != null && (index + 1) * chunk <= J2kSec.now() - diskAge)
+			diskStore.put(key, data, EMPTY);
+	}
+
+	private synchronized void putMemory(String key, Object data)
+	{
+		Entry entry = new Entry(data);
+		if (entry.size > maxBytes)
+			return;
+		Entry old = entries.put(key, entry);
+		if (old != null)
+			size -= old.size;
+		size += entry.size;
+		for (Iterator<Entry> it = entries.values().iterator(); size > maxBytes && it.hasNext(); )
+		{
+			size -= it.next().size;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private boolean isSettled(long index)
+	{
+		return (index + 1) * chunk <= J2kSec.now() - settle;
+	}
+
+	private static double parseTime(String s)
+	{
+		if (s == null)
+			return Double.NaN;
+		try
+		{
+			double t = Double.parseDouble(s);
+			return Double.isInfinite(t) ? Double.NaN : t;
+		}
+		catch (NumberFormatException e)
+		{
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Check if data can be cut into chunks
+	 * @param data data returned by VDX
+	 * @return true for waves and generic data matrices that can be created empty
+	 */
+	static boolean isChunkable(Object data)
+	{
+		if (data instanceof Wave)
+			return true;
+		if (!(data instanceof GenericDataMatrix))
+			return false;
+		try
+		{
+			data.getClass().getConstructor();
+			return true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Cut the data in [t1, t2) out of a time series, times must be ascending
+	 * @param data chunkable data
+	 * @param t1 start time, inclusive
+	 * @param t2 end time, exclusive
+	 * @return new data object, or EMPTY if there is no data in the interval
+	 */
+	static Object slice(Object data, double t1, double t2)
+	{
+		if (data instanceof Wave)
+		{
+			Wave wave = (Wave)data;
+			double rate = wave.getSamplingRate();
+			double start = wave.getStartTime();
+			int from = Math.max(0, (int)Math.ceil((t1 - start) * rate - 1e-6));
+			int to = Math.min(wave.buffer.length, (int)Math.ceil((t2 - start) * rate - 1e-6));
+			if (to <= from)
+				return EMPTY;
+			Wave part = new Wave(Arrays.copyOfRange(wave.buffer, from, to), start + from / rate, rate);
+			part.setDataType(wave.getDataType());
+			return part;
+		}
+
+		GenericDataMatrix gdm = (GenericDataMatrix)data;
+		DoubleMatrix2D m = gdm.getData();
+		if (m == null)
+			return EMPTY;
+		int from = lowerBound(m, t1);
+		int to = lowerBound(m, t2);
+		if (to <= from)
+			return EMPTY;
+		GenericDataMatrix part = newMatrix(gdm);
+		part.setData(m.viewPart(from, 0, to - from, m.columns()).copy());
+		return part;
+	}
+
+	/**
+	 * Stitch chunks into the data of a time window
+	 * @param parts chunks in time order, EMPTY for chunks without data
+	 * @param st window start
+	 * @param et window end, inclusive
+	 * @return new data object, or null if there is no data in the window
+	 */
+	static Object join(Object[] parts, double st, double et)
+	{
+		List<Object> data = new ArrayList<Object>(parts.length);
+		for (Object part : parts)
+		{
+			if (part != EMPTY)
+				data.add(part);
+		}
+		if (data.isEmpty())
+			return null;
+		if (data.get(0) instanceof Wave)
+			return joinWaves(data, st, et);
+
+		int rows = 0;
+		int columns = 0;
+		for (Object part : data)
+		{
+			DoubleMatrix2D m = ((GenericDataMatrix)part).getData();
+			rows += lowerBound(m, Math.nextUp(et)) - lowerBound(m, st);
+			columns = Math.max(columns, m.columns());
+		}
+		if (rows == 0)
+			return null;
+		DoubleMatrix2D joined = new DenseDoubleMatrix2D(rows, columns);
+		int row = 0;
+		for (Object part : data)
+		{
+			DoubleMatrix2D m = ((GenericDataMatrix)part).getData();
+			int end = lowerBound(m, Math.nextUp(et));
+			for (int r = lowerBound(m, st); r < end; r++, row++)
+			{
+				for (int c = 0; c < m.columns(); c++)
+					joined.setQuick(row, c, m.getQuick(r, c));
+			}
+		}
+		GenericDataMatrix result = newMatrix((GenericDataMatrix)data.get(0));
+		result.setData(joined);
+		return result;
+	}
+
+	private static Object joinWaves(List<Object> data, double st, double et)
+	{
+		Wave first = (Wave)data.get(0);
+		double rate = first.getSamplingRate();
+		double start = Double.NaN;
+		double end = Double.NaN;
+		for (Object part : data)
+		{
+			Wave w = (Wave)part;
+			for (int i = 0; i < w.buffer.length; i++)
+			{
+				double t = w.getStartTime() + i / rate;
+				if (t >= st && t <= et)
+				{
+					if (Double.isNaN(start))
+						start = t;
+					end = t;
+				}
+			}
+		}
+		if (Double.isNaN(start))
+			return null;
+
+		int[] buffer = new int[(int)Math.round((end - start) * rate) + 1];
+		Arrays.fill(buffer, Wave.NO_DATA);
+		for (Object part : data)
+		{
+			Wave w = (Wave)part;
+			for (int i = 0; i < w.buffer.length; i++)
+			{
+				double t = w.getStartTime() + i / rate;
+				int j = (int)Math.round((t - start) * rate);
+				if (t >= st && t <= et && j >= 0 && j < buffer.length)
+					buffer[j] = w.buffer[i];
+			}
+		}
+		Wave result = new Wave(buffer, start, rate);
+		result.setDataType(first.getDataType());
+		return result;
+	}
+
+	/**
+	 * Create matrix without data of the class of template, with its column
+	 * names, which the fetched data may have renamed from the class defaults
+	 */
+	private static GenericDataMatrix newMatrix(GenericDataMatrix template)
+	{
+		GenericDataMatrix m;
+		try
+		{
+			m = template.getClass().newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Can't create " + template.getClass().getName(), e);
+		}
+		String[] names = template.getColumnNames();
+		if (names != null)
+			m.setColumnNames(names);
+		return m;
+	}
+
+	/**
+	 * Find first row with time (column 0) at or after t
+	 */
+	private static int lowerBound(DoubleMatrix2D m, double t)
+	{
+		int lo = 0;
+		int hi = m.rows();
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (m.getQuick(mid, 0) < t)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static long sizeOf(Object data)
+	{
+		if (data instanceof Wave)
+			return ((Wave)data).buffer.length * 4L;
+		if (data instanceof GenericDataMatrix)
+		{
+			DoubleMatrix2D m = ((GenericDataMatrix)data).getData();
+			return (m == null) ? 0 : (long)m.rows() * m.columns() * 8;
+		}
+		return 0;
+	}
+
+	/**
+	 * VDX requests for one channel of a data request, and assembly of their
+	 * results with the kept chunks.
+	 */
+	public class Plan
+	{
+		private final String key;
+		private final double st;
+		private final double et;
+		private final boolean chunked;
+		private final long first;
+		private final Object[] parts;
+		private final List<long[]> runs;
+		private final List<Map<String, String>> requests;
+
+		Plan(String vdxClient, Map<String, String> params, String channel)
+		{
+			StringBuilder sb = new StringBuilder(vdxClient);
+			for (Map.Entry<String, String> e : new TreeMap<String, String>(params).entrySet())
+			{
+				if (!e.getKey().equals("st") && !e.getKey().equals("et"))
+					sb.append(';').append(e.getKey()).append('=').append(e.getValue());
+			}
+			sb.append(";ch=").append(channel);
+			key = sb.toString();
+			st = parseTime(params.get("st"));
+			et = parseTime(params.get("et"));
+			chunked = chunkedKeys.contains(key);
+			first = (long)Math.floor(st / chunk);
+			long last = (long)Math.floor(et / chunk);
+			runs = new ArrayList<long[]>();
+			requests = new ArrayList<Map<String, String>>();
+
+			if (!chunked)
+			{
+				parts = null;
+				Map<String, String> request = new LinkedHashMap<String, String>(params);
+				request.put("ch", channel);
+				requests.add(request);
+				return;
+			}
+
+			parts = new Object[(int)(last - first + 1)];
+			for (long i = first; i <= last; i++)
+			{
+				parts[(int)(i - first)] = get(key + ";" + i);
+				if (parts[(int)(i - first)] != null)
+					continue;
+				long[] run = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+				if (run != null && run[1] == i - 1)
+					run[1] = i;
+				else
+					runs.add(new long[] { i, i });
+			}
+			for (long[] run : runs)
+			{
+				Map<String, String> request = new LinkedHashMap<String, String>(params);
+				request.put("ch", channel);
+				request.put("st", Double.toString(run[0] * chunk));
+				request.put("et", Double.toString((run[1] + 1) * chunk));
+				requests.add(request);
+			}
+		}
+
+		/**
+		 * Yield requests to send to VDX, with channel set
+		 * @return list of request parameters, empty if all data are kept
+		 */
+		public List<Map<String, String>> getRequests()
+		{
+			return requests;
+		}
+
+		/**
+		 * Build the channel's data from the responses to the requests and kept chunks,
+		 * keeping the settled chunks received.
+		 * @param results responses of all planned requests
+		 * @param offset index of this plan's first response in results
+		 * @return data of the requested window, a new object not shared with the cache
+		 */
+		public Object complete(Object[] results, int offset)
+		{
+			if (!chunked)
+			{
+				Object data = results[offset];
+				if (isChunkable(data))
+				{
+					if (chunkedKeys.size() > MAX_KEYS)
+						chunkedKeys.clear();
+					chunkedKeys.add(key);
+					for (long i = (long)Math.ceil(st / chunk); (i + 1) * chunk <= et && isSettled(i); i++)
+						put(key + ";" + i, i, slice(data, i * chunk, (i + 1) * chunk));
+				}
+				return data;
+			}
+
+			for (int r = 0; r < runs.size(); r++)
+			{
+				Object data = results[offset + r];
+				if (data != null && !isChunkable(data))
+				{
+					// the source no longer returns time series, fetch it whole from now on
+					chunkedKeys.remove(key);
+					return data;
+				}
+				long[] run = runs.get(r);
+				for (long i = run[0]; i <= run[1]; i++)
+				{
+					Object part = (data == null) ? EMPTY : slice(data, i * chunk, (i + 1) * chunk);
+					parts[(int)(i - first)] = part;
+					if (isSettled(i))
+						put(key + ";" + i, i, part);
+				}
+			}
+			return join(parts, st, et);
+		}
+	}
+
+	/**
+	 * Kept chunk and its approximate size
+	 */
+	private static class Entry
+	{
+		final Object data;
+		final long size;
+
+		Entry(Object d)
+		{
+			data = d;
+			size = ENTRY_OVERHEAD + sizeOf(d);
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package gov.usgs.volcanoes.valve3.data;
 
 import gov.usgs.volcanoes.core.configfile.ConfigFile;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.HttpHandler;
@@ -9,6 +8,7 @@ import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.ErrorMessage;
 import gov.usgs.volcanoes.valve3.result.GenericMenu;
+import gov.usgs.volcanoes.valve3.result.Status;
 import gov.usgs.volcanoes.valve3.result.ewRsamMenu;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 
@@ -17,6 +17,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -32,9 +39,18 @@ public class DataHandler implements HttpHandler
 {
 	private static final String CONFIG_FILE = "data.config";
 	private static final int DEFAULT_VDX_CLIENT_TIMEOUT = 60000;
+	public static final int DEFAULT_PREFETCH_THREADS = 8;
+	public static final int DEFAULT_EXPORT_THREADS = 2;
 	private static final Logger LOGGER = LoggerFactory.getLogger(DataHandler.class);
 	protected Map<String, DataSourceDescriptor> dataSources;
-	protected Map<String, Pool<VDXClient>> vdxClients;
+	protected Map<String, VDXClientPool> vdxClients;
+	protected Map<String, Integer> maxParallelFetch;
+	protected MetadataCache metadataCache;
+	protected ExecutorService fetchExecutor;
+	protected ExecutorService prefetchExecutor;
+	protected ExecutorService exportExecutor;
+	protected ChannelFetcher channelFetcher;
+	protected DataCache dataCache;
 	protected ConfigFile config;
 	
 	/**
@@ -43,7 +59,8 @@ public class DataHandler implements HttpHandler
 	public DataHandler()
 	{
 		dataSources = new HashMap<String, DataSourceDescriptor>();
-		vdxClients = new HashMap<String, Pool<VDXClient>>();
+		vdxClients = new HashMap<String, VDXClientPool>();
+		maxParallelFetch = new HashMap<String, Integer>();
 		processConfigFile();
 	}
 	
@@ -55,20 +72,66 @@ public class DataHandler implements HttpHandler
 		config = new ConfigFile(Valve3.getInstance().getConfigPath() + File.separator + CONFIG_FILE);
 		
 		List<String> vdxs = config.getList("vdx");
+		int totalClients = 0;
 		for (String vdx : vdxs)
 		{
 			LOGGER.info("VDX: {}", vdx);
 			ConfigFile sub = config.getSubConfig(vdx);
-			int num = StringUtils.stringToInt(sub.getString("clients"), 4);
-			Pool<VDXClient> pool = new Pool<VDXClient>();
-			for (int i = 0; i < num; i++)
+			int num = StringUtils.stringToInt(sub.getString("clients"), VDXClientPool.DEFAULT_MAX_SIZE);
+			int timeout = StringUtils.stringToInt(sub.getString("timeout"), DEFAULT_VDX_CLIENT_TIMEOUT);
+			long checkoutTimeout = StringUtils.stringToInt(sub.getString("checkoutTimeout"), (int)VDXClientPool.DEFAULT_CHECKOUT_TIMEOUT);
+			long idleTimeout = StringUtils.stringToInt(sub.getString("idleTimeout"), (int)VDXClientPool.DEFAULT_IDLE_TIMEOUT);
+			int bulkClients = StringUtils.stringToInt(sub.getString("bulkClients"), Math.max(1, num / 2));
+			long bulkThrottle = StringUtils.stringToInt(sub.getString("bulkThrottle"), (int)VDXClientPool.DEFAULT_BULK_THROTTLE);
+			VDXClientPool pool = new VDXClientPool(vdx, sub.getString("host"), Integer.parseInt(sub.getString("port")), timeout, num, checkoutTimeout, idleTimeout, bulkClients, bulkThrottle);
+			LOGGER.info("{}.clients: {}, bulkClients: {}, bulkThrottle: {}", vdx, num, bulkClients, bulkThrottle);
+			vdxClients.put(vdx, pool);
+			totalClients += num;
+			int parallel = StringUtils.stringToInt(sub.getString("maxParallelFetch"), ChannelFetcher.DEFAULT_MAX_PARALLEL);
+			maxParallelFetch.put(vdx, Math.max(1, Math.min(parallel, num)));
+		}
+		
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, totalClients), Math.max(1, totalClients), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("vdx-fetch-"));
+		executor.allowCoreThreadTimeOut(true);
+		fetchExecutor = executor;
+		channelFetcher = new ChannelFetcher(this, fetchExecutor);
+		
+		// when all threads are busy the plot request fetches the component itself
+		int prefetchThreads = Math.max(1, StringUtils.stringToInt(config.getString("prefetch.threads"), DEFAULT_PREFETCH_THREADS));
+		ThreadPoolExecutor prefetch = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("prefetch-"), new ThreadPoolExecutor.CallerRunsPolicy());
+		prefetch.allowCoreThreadTimeOut(true);
+		prefetchExecutor = prefetch;
+		LOGGER.info("prefetch.threads: {}", prefetchThreads);
+		
+		// exports of several components get threads of their own, so they don't take those of plots
+		int exportThreads = Math.max(1, StringUtils.stringToInt(config.getString("export.threads"), DEFAULT_EXPORT_THREADS));
+		ThreadPoolExecutor export = new ThreadPoolExecutor(exportThreads, exportThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("export-"), new ThreadPoolExecutor.CallerRunsPolicy());
+		export.allowCoreThreadTimeOut(true);
+		exportExecutor = export;
+		LOGGER.info("export.threads: {}", exportThreads);
+		
+		long metadataTtl = StringUtils.stringToInt(config.getString("metadataCache.ttl"), (int)MetadataCache.DEFAULT_TTL);
+		int metadataMax = StringUtils.stringToInt(config.getString("metadataCache.maxEntries"), MetadataCache.DEFAULT_MAX_ENTRIES);
+		metadataCache = new MetadataCache(this, metadataTtl, metadataMax);
+		
+		int dataCacheSize = StringUtils.stringToInt(config.getString("dataCache.size"), (int)(DataCache.DEFAULT_MAX_BYTES / (1024 * 1024)));
+		if (dataCacheSize > 0)
+		{
+			int chunk = StringUtils.stringToInt(config.getString("dataCache.chunk"), DataCache.DEFAULT_CHUNK);
+			int settle = StringUtils.stringToInt(config.getString("dataCache.settle"), DataCache.DEFAULT_SETTLE);
+			dataCache = new DataCache(Math.max(1, chunk), settle, dataCacheSize * 1024L * 1024L);
+			LOGGER.info("dataCache.size: {}, chunk: {}, settle: {}", dataCacheSize, chunk, settle);
+			String diskDir = config.getString("dataCache.disk.dir");
+			if (diskDir != null)
 			{
-				VDXClient client = new VDXClient(sub.getString("host"), Integer.parseInt(sub.getString("port")));
-				int timeout = StringUtils.stringToInt(sub.getString("timeout"), DEFAULT_VDX_CLIENT_TIMEOUT);
-				client.setTimeout(timeout);
-				pool.checkin(client);
+				File dir = new File(diskDir);
+				if (!dir.isAbsolute())
+					dir = new File(Valve3.getInstance().getApplicationPath(), diskDir);
+				int diskSize = StringUtils.stringToInt(config.getString("dataCache.disk.size"), (int)(DiskChunkStore.DEFAULT_MAX_BYTES / (1024 * 1024)));
+				int diskAge = StringUtils.stringToInt(config.getString("dataCache.disk.age"), DiskChunkStore.DEFAULT_AGE);
+				dataCache.setDiskStore(new DiskChunkStore(dir, diskSize * 1024L * 1024L), diskAge);
+				LOGGER.info("dataCache.disk.dir: {}, size: {}, age: {}", dir, diskSize, diskAge);
 			}
-			vdxClients.put(vdx, pool);
 		}
 		
 		List<String> sources = config.getList("source");
@@ -93,13 +156,126 @@ public class DataHandler implements HttpHandler
 	/**
 	 * Yield VDXClient pool
 	 * @param key vdx parameter string in config file
-	 * @return Pool of initialized VDXClients configured in data.config file
+	 * @return Pool of VDXClients configured in data.config file
 	 */
-	public Pool<VDXClient> getVDXClient(String key)
+	public VDXClientPool getVDXClient(String key)
 	{
 		return vdxClients.get(key);
 	}
 	
+	/**
+	 * Yield maximum number of clients one request may use at once to fetch channels
+	 * @param key vdx parameter string in config file
+	 * @return "maxParallelFetch" of the vdx, bounded by its number of clients
+	 */
+	public int getMaxParallelFetch(String key)
+	{
+		Integer max = maxParallelFetch.get(key);
+		return (max == null) ? 1 : max.intValue();
+	}
+	
+	/**
+	 * Yield fetcher for multi-channel data requests
+	 * @return channel fetcher
+	 */
+	public ChannelFetcher getChannelFetcher()
+	{
+		return channelFetcher;
+	}
+	
+	/**
+	 * Replace fetcher for multi-channel data requests, used to plot canned data
+	 * in benchmarks
+	 * @param channelFetcher channel fetcher
+	 */
+	public void setChannelFetcher(ChannelFetcher channelFetcher)
+	{
+		this.channelFetcher = channelFetcher;
+	}
+	
+	/**
+	 * Yield executor on which the components of a plot fetch their data at
+	 * the same time
+	 * @return bounded executor, runs tasks in the calling thread when all threads are busy
+	 */
+	public ExecutorService getPrefetchExecutor()
+	{
+		return prefetchExecutor;
+	}
+	
+	/**
+	 * Yield executor on which the components of a raw data export are
+	 * prepared at the same time, separate from the prefetch executor
+	 * @return bounded executor, runs tasks in the calling thread when all threads are busy
+	 */
+	public ExecutorService getExportExecutor()
+	{
+		return exportExecutor;
+	}
+	
+	/**
+	 * Yield cache of time series data
+	 * @return data cache, null if disabled
+	 */
+	public DataCache getDataCache()
+	{
+		return dataCache;
+	}
+	
+	/**
+	 * Add metrics of VDX client pools and data cache to status
+	 * @param status status to fill
+	 */
+	public void addStatus(Status status)
+	{
+		for (VDXClientPool pool : vdxClients.values())
+			pool.addStatus(status);
+		if (dataCache != null)
+			dataCache.addStatus(status);
+	}
+	
+	/**
+	 * Stops worker threads and closes idle VDX connections, used on application shutdown
+	 */
+	public void shutdown()
+	{
+		fetchExecutor.shutdownNow();
+		prefetchExecutor.shutdownNow();
+		exportExecutor.shutdownNow();
+		for (VDXClientPool pool : vdxClients.values())
+			pool.close();
+	}
+	
+	/**
+	 * Yield cached metadata list (channels, ranks, columns, azimuths) of vdx source
+	 * @param vdxClient vdx parameter string in config file
+	 * @param vdxSource vdx source name
+	 * @param action metadata action to request from vdx
+	 * @return unmodifiable list of strings from vdx, or null if vdx is unknown or request failed
+	 */
+	public List<String> getMetadata(String vdxClient, String vdxSource, String action)
+	{
+		return metadataCache.get(vdxClient, vdxSource, action);
+	}
+	
+	/**
+	 * Yield metadata cache
+	 * @return cache of vdx channels, ranks, columns and azimuths
+	 */
+	public MetadataCache getMetadataCache()
+	{
+		return metadataCache;
+	}
+	
+	/**
+	 * Replace metadata cache, used to supply canned metadata in benchmarks
+	 * @param metadataCache cache of vdx channels, ranks, columns and azimuths
+	 */
+	public void setMetadataCache(MetadataCache metadataCache)
+	{
+		this.metadataCache = metadataCache;
+	}
+	
 	/**
 	 * Yield named data source descriptor
 	 * @param key data source name ("source" parameter in data.config file)
@@ -144,76 +320,76 @@ public class DataHandler implements HttpHandler
 			params.put("source", dsd.getVDXSource());
 			params.put("action", action);
 			
-			Pool<VDXClient> pool	= Valve3.getInstance().getDataHandler().getVDXClient(dsd.getVDXClientName());
+			VDXClientPool pool		= Valve3.getInstance().getDataHandler().getVDXClient(dsd.getVDXClientName());
 			
 			
 			if (pool == null)
 				throw new Valve3Exception("Unknown VDX server " + dsd.getVDXClientName() + " check .vdx line in data.config");
 
-			VDXClient client		= pool.checkout();
-			
-			if (client != null) {
-				List<String> ls	= null;
-				if (action.equals("metadata") || action.equals("suppdata")) {
-					// Add the parameters needed for meta or supp data
-					// Also validate for required and duplicated parameters
-					String arg;
-					LOGGER.info("Processing {}", action);
-					char m_kind[] = {'?','!','?','?','x','x','x','x'};
-					char s_kind[] = {'?','?','?','?','!','?','?','?'};
-					char kind[];
-					int req_cnt = 1;
-					if ( action.equals("metadata") ) {
-						kind = m_kind;
-					} else {
-						kind = s_kind;
-					}
-					String args[] = {"byID","ch","col","rk","st","et","tz","type"};
-					for ( int i=0; i<8; i++ ) {
-						arg = request.getParameter( args[i] );
-						if ( arg==null || arg.equals(""))
-							continue;
-						LOGGER.info("{} = {}", args[i], arg);
-						switch ( kind[i] ) {
-							case 'x':
-								throw new Valve3Exception( "Illegal parameter: " + args[i] );
-							case 'r':
-								throw new Valve3Exception( "Duplicated paramneter: " + args[i] );
-							case '!':
-								req_cnt--;
-							case '?':
-								kind[i] = 'r';
-								params.put( args[i], arg );
-						}
-					}
-				}
-				try {
-					ls	= client.getTextData(params);
-				} catch (UtilException e) {
-					throw new Valve3Exception(e.getMessage()); 
-				} finally {
-					pool.checkin(client);
+			List<String> ls	= null;
+			if (action.equals("metadata") || action.equals("suppdata")) {
+				// Add the parameters needed for meta or supp data
+				// Also validate for required and duplicated parameters
+				String arg;
+				LOGGER.info("Processing {}", action);
+				char m_kind[] = {'?','!','?','?','x','x','x','x'};
+				char s_kind[] = {'?','?','?','?','!','?','?','?'};
+				char kind[];
+				int req_cnt = 1;
+				if ( action.equals("metadata") ) {
+					kind = m_kind;
+				} else {
+					kind = s_kind;
 				}
-				if (ls != null) {
-					if (action.equals("genericMenu")) {
-						GenericMenu result = new GenericMenu(ls);
-						return result;
-					} else if (action.equals("ewRsamMenu")) {
-						ewRsamMenu result = new ewRsamMenu(ls);
-						return result;
-					} else {
-						List<String> lsx;
-						if (action.equals("suppdata")) {
-							lsx = new ArrayList<String>();
-							for ( String s: ls ) 
-								lsx.add( protectSpecialCharacters(s) );
-						} else
-							lsx = ls;
-						gov.usgs.volcanoes.valve3.result.List result	= new gov.usgs.volcanoes.valve3.result.List(lsx);
-						return result;
+				String args[] = {"byID","ch","col","rk","st","et","tz","type"};
+				for ( int i=0; i<8; i++ ) {
+					arg = request.getParameter( args[i] );
+					if ( arg==null || arg.equals(""))
+						continue;
+					LOGGER.info("{} = {}", args[i], arg);
+					switch ( kind[i] ) {
+						case 'x':
+							throw new Valve3Exception( "Illegal parameter: " + args[i] );
+						case 'r':
+							throw new Valve3Exception( "Duplicated paramneter: " + args[i] );
+						case '!':
+							req_cnt--;
+						case '?':
+							kind[i] = 'r';
+							params.put( args[i], arg );
 					}
 				}
 			}
+			VDXClient client	= pool.checkout();
+			try {
+				ls	= client.getTextData(params);
+			} catch (UtilException e) {
+				throw new Valve3Exception(e.getMessage()); 
+			} catch (RuntimeException e) {
+				pool.invalidate(client);
+				throw e;
+			} finally {
+				pool.checkin(client);
+			}
+			if (ls != null) {
+				if (action.equals("genericMenu")) {
+					GenericMenu result = new GenericMenu(ls);
+					return result;
+				} else if (action.equals("ewRsamMenu")) {
+					ewRsamMenu result = new ewRsamMenu(ls);
+					return result;
+				} else {
+					List<String> lsx;
+					if (action.equals("suppdata")) {
+						lsx = new ArrayList<String>();
+						for ( String s: ls ) 
+							lsx.add( protectSpecialCharacters(s) );
+					} else
+						lsx = ls;
+					gov.usgs.volcanoes.valve3.result.List result	= new gov.usgs.volcanoes.valve3.result.List(lsx);
+					return result;
+				}
+			}
 			// this should not be necessary, as the pool was already checked back in if it wasn't null.
 			// pool.checkin(client);
 			return null;
@@ -224,6 +400,27 @@ public class DataHandler implements HttpHandler
 		}
 	}
 	
+	/**
+	 * Creates named daemon threads, so worker pools don't keep the container from stopping
+	 */
+	public static class DaemonThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger(0);
+		
+		public DaemonThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+		
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+	
 	/**
 	 * Returns the string where all non-ascii and <, &, > are encoded as numeric entities. I.e. "&lt;A &amp; B &gt;"
 	 * .... (insert result here). The result is safe to include anywhere in a text field in an XML-string. If there was
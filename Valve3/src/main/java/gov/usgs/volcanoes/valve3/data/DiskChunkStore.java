@@ -0,0 +1,471 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.data.HelicorderData;
+import gov.usgs.volcanoes.core.data.RSAMData;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.valve3.result.Status;
+import gov.usgs.volcanoes.vdx.data.tensorstrain.TensorstrainData;
+import gov.usgs.volcanoes.vdx.data.tilt.TiltData;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+
+/**
+ * Second level of the data cache: keeps chunks of historical time series in
+ * files, so they survive restarts and eviction from memory. Each chunk is one
+ * file, named by a digest of its cache key, holding the key and the data as
+ * little-endian primitive columns; files are written and read whole through
+ * a heap buffer and a file channel. Least recently used files are deleted
+ * when the total size exceeds the limit. Only files which can't be parsed
+ * are deleted on reading, not those whose reading failed or was interrupted.
+ *
+ * File layout: magic, type (empty, matrix, wave), key; for matrices the
+ * matrix class as an index into a fixed list of known classes, column names,
+ * rows, columns and the columns of doubles one after another; for waves
+ * start time, sampling rate, data type, sample count and the int samples.
+ * Matrices of other classes aren't stored.
+ */
+public class DiskChunkStore
+{
+	public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+	public static final int DEFAULT_AGE = 86400;
+	private static final Logger LOGGER = LoggerFactory.getLogger(DiskChunkStore.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SUFFIX = ".chunk";
+	private static final int MAGIC = 0x56434833;
+	private static final byte TYPE_EMPTY = 0;
+	private static final byte TYPE_MATRIX = 1;
+	private static final byte TYPE_WAVE = 2;
+	// indexes are stored in files, only append
+	private static final Class<?>[] MATRIX_CLASSES = {GenericDataMatrix.class, RSAMData.class,
+		HelicorderData.class, TiltData.class, TensorstrainData.class};
+
+	private final File dir;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Long> files;
+	private long size;
+	private long hits;
+	private long misses;
+	private long writes;
+	private long evictions;
+
+	/**
+	 * Constructor, indexes the chunk files already in the directory
+	 * @param dir directory of chunk files, created if missing
+	 * @param maxBytes maximum total size of chunk files
+	 */
+	public DiskChunkStore(File dir, long maxBytes)
+	{
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		files = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			LOGGER.warn("Can't create data cache directory {}", dir);
+
+		File[] existing = dir.listFiles();
+		if (existing == null)
+			return;
+		// oldest first, so the most recently written files are the last evicted
+		Arrays.sort(existing, new Comparator<File>()
+			{
+				public int compare(File a, File b)
+				{
+					return Long.compare(a.lastModified(), b.lastModified());
+				}
+			});
+		for (File f : existing)
+		{
+			if (f.getName().endsWith(SUFFIX))
+			{
+				files.put(f.getName(), f.length());
+				size += f.length();
+			}
+			else if (f.getName().endsWith(".tmp"))
+				f.delete();
+		}
+		evict();
+		LOGGER.info("Data cache directory {}: {} chunks, {} bytes", dir, files.size(), size);
+	}
+
+	/**
+	 * Read chunk
+	 * @param key cache key
+	 * @param empty object to return for a chunk without data
+	 * @return chunk data, empty, or null if the chunk isn't stored or can't be read
+	 */
+	public Object get(String key, Object empty)
+	{
+		String name = fileName(key);
+		synchronized (this)
+		{
+			if (files.get(name) == null)
+			{
+				misses++;
+				return null;
+			}
+		}
+
+		Object data = null;
+		boolean bad = false;
+		try
+		{
+			data = read(new File(dir, name), key, empty);
+			// a chunk of another key with the same digest
+			bad = (data == null);
+		}
+		catch (BadChunkException e)
+		{
+			LOGGER.warn("Bad data cache file {}: {}", name, e.getMessage());
+			bad = true;
+		}
+		catch (FileNotFoundException e)
+		{
+			bad = true;
+		}
+		catch (IOException e)
+		{
+			// interrupted by a cancelled request, or the disk failed; the file
+			// may well be fine
+			LOGGER.debug("Can't read data cache file {}: {}", name, e.toString());
+		}
+		synchronized (this)
+		{
+			if (bad)
+				remove(name);
+			if (data == null)
+				misses++;
+			else
+				hits++;
+		}
+		return data;
+	}
+
+	/**
+	 * Store chunk, unless it already is stored
+	 * @param key cache key
+	 * @param data chunk data, a Wave, GenericDataMatrix or empty
+	 * @param empty object standing for a chunk without data
+	 */
+	public void put(String key, Object data, Object empty)
+	{
+		if (data != empty && !(data instanceof Wave) && matrixIndex(data) < 0)
+			return;
+		String name = fileName(key);
+		synchronized (this)
+		{
+			if (files.containsKey(name))
+				return;
+		}
+
+		File file = new File(dir, name);
+		File tmp = new File(dir, name + "." + Thread.currentThread().getId() + ".tmp");
+		long length;
+		try
+		{
+			length = write(tmp, key, data, empty);
+			if (!tmp.renameTo(file))
+				throw new IOException("rename failed");
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("Can't write data cache file {}: {}", name, e.getMessage());
+			tmp.delete();
+			return;
+		}
+
+		synchronized (this)
+		{
+			Long old = files.put(name, length);
+			if (old != null)
+				size -= old;
+			size += length;
+			writes++;
+			evict();
+		}
+	}
+
+	/**
+	 * Add store metrics to status
+	 * @param status status to fill
+	 */
+	public synchronized void addStatus(Status status)
+	{
+		status.put("dataCache.disk.hits", hits);
+		status.put("dataCache.disk.misses", misses);
+		status.put("dataCache.disk.writes", writes);
+		status.put("dataCache.disk.evictions", evictions);
+		status.put("dataCache.disk.count", files.size());
+		status.put("dataCache.disk.size", size);
+	}
+
+	private void evict()
+	{
+		for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); size > maxBytes && it.hasNext(); )
+		{
+			Map.Entry<String, Long> e = it.next();
+			size -= e.getValue();
+			it.remove();
+			new File(dir, e.getKey()).delete();
+			evictions++;
+		}
+	}
+
+	private void remove(String name)
+	{
+		Long length = files.remove(name);
+		if (length != null)
+			size -= length;
+		new File(dir, name).delete();
+	}
+
+	private static String fileName(String key)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF8));
+			StringBuilder sb = new StringBuilder(digest.length * 2 + SUFFIX.length());
+			for (byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return sb.append(SUFFIX).toString();
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int matrixIndex(Object data)
+	{
+		for (int i = 0; i < MATRIX_CLASSES.length; i++)
+		{
+			if (data.getClass() == MATRIX_CLASSES[i])
+				return i;
+		}
+		return -1;
+	}
+
+	private static long write(File file, String key, Object data, Object empty) throws IOException
+	{
+		byte[] keyBytes = key.getBytes(UTF8);
+		long length = 4 + 1 + 4 + keyBytes.length;
+		byte type;
+		byte[] name = null;
+		int matrixClass = -1;
+		byte[][] columnNames = null;
+		DoubleMatrix2D m = null;
+		Wave wave = null;
+		if (data == empty)
+			type = TYPE_EMPTY;
+		else if (data instanceof Wave)
+		{
+			type = TYPE_WAVE;
+			wave = (Wave)data;
+			name = (wave.getDataType() == null ? "" : wave.getDataType()).getBytes(UTF8);
+			length += 8 + 8 + 4 + name.length + 4 + 4L * wave.buffer.length;
+		}
+		else if (matrixIndex(data) >= 0)
+		{
+			type = TYPE_MATRIX;
+			matrixClass = matrixIndex(data);
+			GenericDataMatrix gdm = (GenericDataMatrix)data;
+			m = gdm.getData();
+			String[] names = gdm.getColumnNames();
+			columnNames = new byte[(names == null) ? 0 : names.length][];
+			length += 1 + 4;
+			for (int i = 0; i < columnNames.length; i++)
+			{
+				columnNames[i] = names[i].getBytes(UTF8);
+				length += 4 + columnNames[i].length;
+			}
+			length += 4 + 4 + 8L * m.rows() * m.columns();
+		}
+		else
+			throw new IOException("unsupported data " + data.getClass().getName());
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("chunk too large: " + length + " bytes");
+
+		ByteBuffer buf = ByteBuffer.allocate((int)length);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC);
+		buf.put(type);
+		buf.putInt(keyBytes.length);
+		buf.put(keyBytes);
+		if (type == TYPE_WAVE)
+		{
+			buf.putDouble(wave.getStartTime());
+			buf.putDouble(wave.getSamplingRate());
+			buf.putInt(name.length);
+			buf.put(name);
+			buf.putInt(wave.buffer.length);
+			buf.asIntBuffer().put(wave.buffer);
+		}
+		else if (type == TYPE_MATRIX)
+		{
+			buf.put((byte)matrixClass);
+			buf.putInt(columnNames.length);
+			for (byte[] columnName : columnNames)
+			{
+				buf.putInt(columnName.length);
+				buf.put(columnName);
+			}
+			buf.putInt(m.rows());
+			buf.putInt(m.columns());
+			for (int c = 0; c < m.columns(); c++)
+			{
+				for (int r = 0; r < m.rows(); r++)
+					buf.putDouble(m.getQuick(r, c));
+			}
+		}
+		buf.clear();
+
+		// a cache file lost in a crash is fetched again, so it isn't synced
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			while (buf.hasRemaining())
+				channel.write(buf);
+		}
+		finally
+		{
+			out.close();
+		}
+		return length;
+	}
+
+	private static Object read(File file, String key, Object empty) throws IOException
+	{
+		ByteBuffer buf;
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("file too large");
+			buf = ByteBuffer.allocate((int)length);
+			while (buf.hasRemaining())
+			{
+				if (channel.read(buf) < 0)
+					throw new EOFException();
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		buf.flip();
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			return parse(buf, key, empty);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new BadChunkException("truncated");
+		}
+		catch (RuntimeException e)
+		{
+			throw new BadChunkException(e.toString());
+		}
+	}
+
+	private static Object parse(ByteBuffer buf, String key, Object empty) throws BadChunkException
+	{
+		if (buf.getInt() != MAGIC)
+			throw new BadChunkException("bad magic");
+		byte type = buf.get();
+		// a digest collision would put another key here
+		if (!key.equals(getString(buf)))
+			return null;
+
+		if (type == TYPE_EMPTY)
+			return empty;
+		if (type == TYPE_WAVE)
+		{
+			double start = buf.getDouble();
+			double rate = buf.getDouble();
+			String dataType = getString(buf);
+			int[] samples = new int[buf.getInt()];
+			buf.asIntBuffer().get(samples);
+			Wave wave = new Wave(samples, start, rate);
+			if (dataType.length() > 0)
+				wave.setDataType(dataType);
+			return wave;
+		}
+		if (type == TYPE_MATRIX)
+		{
+			int matrixClass = buf.get();
+			if (matrixClass < 0 || matrixClass >= MATRIX_CLASSES.length)
+				throw new BadChunkException("unknown matrix class " + matrixClass);
+			GenericDataMatrix gdm;
+			try
+			{
+				gdm = (GenericDataMatrix)MATRIX_CLASSES[matrixClass].newInstance();
+			}
+			catch (Exception e)
+			{
+				throw new IllegalStateException("Can't create " + MATRIX_CLASSES[matrixClass].getName(), e);
+			}
+			String[] names = new String[buf.getInt()];
+			for (int i = 0; i < names.length; i++)
+				names[i] = getString(buf);
+			if (names.length > 0)
+				gdm.setColumnNames(names);
+			int rows = buf.getInt();
+			int columns = buf.getInt();
+			DoubleMatrix2D m = new DenseDoubleMatrix2D(rows, columns);
+			for (int c = 0; c < columns; c++)
+			{
+				for (int r = 0; r < rows; r++)
+					m.setQuick(r, c, buf.getDouble());
+			}
+			gdm.setData(m);
+			return gdm;
+		}
+		throw new BadChunkException("unknown type " + type);
+	}
+
+	private static String getString(ByteBuffer buf)
+	{
+		byte[] b = new byte[buf.getInt()];
+		buf.get(b);
+		return new String(b, UTF8);
+	}
+
+	/**
+	 * A chunk file which can't be parsed
+	 */
+	private static class BadChunkException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+
+		BadChunkException(String message)
+		{
+			super(message);
+		}
+	}
+}
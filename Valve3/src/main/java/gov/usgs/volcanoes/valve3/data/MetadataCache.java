@@ -0,0 +1,229 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps text metadata (channels, ranks, columns, azimuths) fetched from VDX
+ * for a limited time, so plots and exports of the same source don't ask the
+ * server for the same lists on every request. Concurrent requests for a
+ * missing entry share one fetch. Failed fetches are not cached.
+ *
+ * Cached lists are unmodifiable; callers parse them into their own objects
+ * because Channel and Column instances are changed by the plotters.
+ */
+public class MetadataCache
+{
+	public static final long DEFAULT_TTL = 300000;
+	public static final int DEFAULT_MAX_ENTRIES = 1000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+
+	private final DataHandler dataHandler;
+	private final long ttl;
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 * Constructor
+	 * @param dataHandler owner of the VDX client pools used to load entries
+	 * @param ttl time in ms an entry stays valid, 0 disables caching
+	 * @param maxEntries maximum number of cached lists
+	 */
+	public MetadataCache(DataHandler dataHandler, long ttl, int maxEntries)
+	{
+		this.dataHandler = dataHandler;
+		this.ttl = ttl;
+		this.maxEntries = maxEntries;
+		entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	 * Yield metadata list for given source and action, loading it from VDX if
+	 * it isn't cached or has expired.
+	 * @param vdxClient vdx name in data.config
+	 * @param vdxSource vdx source name
+	 * @param action metadata action: "channels", "ranks", "columns", "azimuths"
+	 * @return unmodifiable list of strings returned by VDX, or null if VDX is unknown or request failed
+	 */
+	public List<String> get(String vdxClient, String vdxSource, String action)
+	{
+		if (ttl <= 0)
+			return load(vdxClient, vdxSource, action);
+
+		String key = key(vdxClient, vdxSource) + action;
+		while (true)
+		{
+			Entry entry = entries.get(key);
+			if (entry == null || entry.isExpired())
+			{
+				Entry fresh = new Entry(vdxClient, vdxSource, action);
+				boolean installed = (entry == null) ? entries.putIfAbsent(key, fresh) == null : entries.replace(key, entry, fresh);
+				if (!installed)
+					continue;
+				entry = fresh;
+				entry.task.run();
+				if (entries.size() > maxEntries)
+					evict();
+			}
+
+			List<String> result = entry.getResult();
+			if (result == null)
+				entries.remove(key, entry);
+			return result;
+		}
+	}
+
+	/**
+	 * Drop all cached lists of given source
+	 * @param vdxClient vdx name in data.config
+	 * @param vdxSource vdx source name
+	 */
+	public void invalidate(String vdxClient, String vdxSource)
+	{
+		String prefix = key(vdxClient, vdxSource);
+		for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); )
+		{
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Drop all cached lists
+	 */
+	public void invalidateAll()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Removes expired entries, then the oldest ones until the size limit is met.
+	 */
+	private void evict()
+	{
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); )
+		{
+			if (it.next().isExpired())
+				it.remove();
+		}
+		while (entries.size() > maxEntries)
+		{
+			Map.Entry<String, Entry> oldest = null;
+			for (Map.Entry<String, Entry> e : entries.entrySet())
+			{
+				if (oldest == null || e.getValue().created < oldest.getValue().created)
+					oldest = e;
+			}
+			if (oldest == null)
+				break;
+			entries.remove(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	/**
+	 * Fetch metadata list from VDX
+	 * @return unmodifiable list, or null on failure
+	 */
+	private List<String> load(String vdxClient, String vdxSource, String action)
+	{
+		VDXClientPool pool = dataHandler.getVDXClient(vdxClient);
+		if (pool == null)
+			return null;
+
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put("source", vdxSource);
+		params.put("action", action);
+
+		List<String> stringList = null;
+		VDXClient client = null;
+		try
+		{
+			client = pool.checkout();
+			stringList = client.getTextData(params);
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("Can't get {} for {}: {}", action, vdxSource, e.getMessage());
+			// a failed request may leave the connection out of step, so the
+			// client is replaced; a failed checkout leaves it null, which is ignored
+			pool.invalidate(client);
+			stringList = null;
+		}
+		finally
+		{
+			pool.checkin(client);
+		}
+		return (stringList == null) ? null : Collections.unmodifiableList(stringList);
+	}
+
+	private static String key(String vdxClient, String vdxSource)
+	{
+		return vdxClient + "\n" + vdxSource + "\n";
+	}
+
+	/**
+	 * Cached list, or the fetch in progress for it.
+	 */
+	private class Entry
+	{
+		final FutureTask<List<String>> task;
+		final long created;
+
+		Entry(final String vdxClient, final String vdxSource, final String action)
+		{
+			created = System.currentTimeMillis();
+			task = new FutureTask<List<String>>(new Callable<List<String>>()
+				{
+					public List<String> call()
+					{
+						return load(vdxClient, vdxSource, action);
+					}
+				});
+		}
+
+		boolean isExpired()
+		{
+			return task.isDone() && System.currentTimeMillis() - created > ttl;
+		}
+
+		List<String> getResult()
+		{
+			boolean interrupted = false;
+			try
+			{
+				while (true)
+				{
+					try
+					{
+						return task.get();
+					}
+					catch (InterruptedException e)
+					{
+						interrupted = true;
+					}
+					catch (ExecutionException e)
+					{
+						return null;
+					}
+				}
+			}
+			finally
+			{
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package gov.usgs.volcanoes.valve3.data;
+
+/**
+ * Priority of the request handled by the current thread. Bulk work (raw
+ * data exports) gets VDX clients only within its quota, and only when no
+ * interactive request (plots, menus, data) is waiting for one; see
+ * {@link VDXClientPool}. Threads are interactive unless marked otherwise.
+ */
+public class RequestPriority
+{
+	private static final ThreadLocal<Boolean> BULK = new ThreadLocal<Boolean>();
+
+	private RequestPriority()
+	{
+	}
+
+	/**
+	 * Mark the request handled by the current thread
+	 * @param bulk true for bulk work, false for interactive
+	 */
+	public static void setBulk(boolean bulk)
+	{
+		if (bulk)
+			BULK.set(Boolean.TRUE);
+		else
+			BULK.remove();
+	}
+
+	/**
+	 * Check priority of the request handled by the current thread
+	 * @return true for bulk work
+	 */
+	public static boolean isBulk()
+	{
+		return BULK.get() != null;
+	}
+}
@@ -0,0 +1,372 @@
+package gov.usgs.volcanoes.valve3.data;
+
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.result.Status;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of VDXClients connected to one vdx server.
+ *
+ * Clients are created on demand up to the configured size. A checkout
+ * waits at most the checkout timeout for a free client and then fails with
+ * a Valve3Exception instead of hanging the request. Clients idle for longer
+ * than the idle timeout are closed before reuse, since the server may have
+ * dropped the connection; clients marked as failed with {@link #invalidate}
+ * are closed on checkin and replaced by new ones when needed.
+ *
+ * Bulk checkouts (see {@link RequestPriority}) may hold at most the bulk
+ * quota of clients, and don't take a client while an interactive checkout
+ * is waiting, so exports can't crowd out plots. When interactive checkouts
+ * have recently waited longer than the bulk throttle on average, the bulk
+ * quota drops to a single client until they speed up again.
+ *
+ * Usage:
+ * <pre>
+ * VDXClient client = pool.checkout();
+ * try {
+ *     ... client.getBinaryData(params) ...
+ * } catch (Exception e) {
+ *     pool.invalidate(client);
+ * } finally {
+ *     pool.checkin(client);
+ * }
+ * </pre>
+ */
+public class VDXClientPool
+{
+	public static final int DEFAULT_MAX_SIZE = 4;
+	public static final long DEFAULT_CHECKOUT_TIMEOUT = 30000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+	public static final long DEFAULT_BULK_THROTTLE = 1000;
+	// interactive waits older than this don't throttle bulk checkouts
+	private static final long THROTTLE_WINDOW = 10000;
+	private static final Logger LOGGER = LoggerFactory.getLogger(VDXClientPool.class);
+
+	private final String name;
+	private final String host;
+	private final int port;
+	private final int clientTimeout;
+	private final int maxSize;
+	private final long checkoutTimeout;
+	private final long idleTimeout;
+	private final int bulkMax;
+	private final long bulkThrottle;
+
+	private final LinkedList<VDXClient> idle;
+	private final Map<VDXClient, Long> lastUsed;
+	private final Map<VDXClient, Boolean> invalid;
+	private final Map<VDXClient, Boolean> bulk;
+	private int size;
+	private int inUse;
+	private int bulkInUse;
+	private int interactiveWaiting;
+	private double interactiveWaitAvg;
+	private long lastInteractive;
+
+	private long checkouts;
+	private long waits;
+	private long waitTime;
+	private long maxWaitTime;
+	private long timeouts;
+	private long failures;
+	private long created;
+	private long expired;
+	private int peakInUse;
+	private long bulkCheckouts;
+	private long bulkWaits;
+
+	/**
+	 * Constructor
+	 * @param name vdx name in data.config
+	 * @param host vdx server host
+	 * @param port vdx server port
+	 * @param clientTimeout socket timeout of clients in ms
+	 * @param maxSize maximum number of clients
+	 * @param checkoutTimeout time in ms to wait for a free client, 0 to wait indefinitely
+	 * @param idleTimeout time in ms after which an unused client is reconnected, 0 to never
+	 * @param bulkMax maximum number of clients used by bulk checkouts
+	 * @param bulkThrottle average interactive wait in ms above which bulk checkouts are limited to one client, 0 to never
+	 */
+	public VDXClientPool(String name, String host, int port, int clientTimeout, int maxSize, long checkoutTimeout, long idleTimeout, int bulkMax, long bulkThrottle)
+	{
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.clientTimeout = clientTimeout;
+		this.maxSize = Math.max(1, maxSize);
+		this.checkoutTimeout = checkoutTimeout;
+		this.idleTimeout = idleTimeout;
+		this.bulkMax = Math.max(1, Math.min(bulkMax, this.maxSize));
+		this.bulkThrottle = bulkThrottle;
+		idle = new LinkedList<VDXClient>();
+		lastUsed = new IdentityHashMap<VDXClient, Long>();
+		invalid = new IdentityHashMap<VDXClient, Boolean>();
+		bulk = new IdentityHashMap<VDXClient, Boolean>();
+	}
+
+	/**
+	 * Yield maximum number of clients
+	 * @return pool size limit
+	 */
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Take a client from the pool, waiting for one to be returned if all are
+	 * in use; the priority is that of the current thread's request
+	 * @return client
+	 * @throws Valve3Exception if no client became free within the checkout timeout
+	 */
+	public VDXClient checkout() throws Valve3Exception
+	{
+		return checkout(RequestPriority.isBulk());
+	}
+
+	/**
+	 * Take a client from the pool, waiting for one to be returned if all are
+	 * in use or the bulk quota is used up
+	 * @param isBulk true for a bulk checkout
+	 * @return client
+	 * @throws Valve3Exception if no client became free within the checkout timeout
+	 */
+	public VDXClient checkout(boolean isBulk) throws Valve3Exception
+	{
+		long start = System.currentTimeMillis();
+		VDXClient stale = null;
+		VDXClient client = null;
+		try
+		{
+			synchronized (this)
+			{
+				boolean waited = false;
+				while (client == null)
+				{
+					// bulk checkouts wait for interactive ones and within their quota
+					boolean allowed = !isBulk || (interactiveWaiting == 0 && bulkInUse < getBulkLimit(System.currentTimeMillis()));
+					if (allowed && !idle.isEmpty())
+					{
+						// most recently used first, so surplus clients age out
+						client = idle.removeFirst();
+						Long used = lastUsed.remove(client);
+						if (idleTimeout > 0 && used != null && start - used.longValue() > idleTimeout)
+						{
+							stale = client;
+							client = newClient();
+							expired++;
+						}
+					}
+					else if (allowed && size < maxSize)
+					{
+						client = newClient();
+						size++;
+					}
+					if (client != null)
+						break;
+					if (checkoutTimeout <= 0)
+					{
+						waited = true;
+						await(isBulk, 0);
+					}
+					else
+					{
+						long remaining = start + checkoutTimeout - System.currentTimeMillis();
+						if (remaining <= 0)
+						{
+							timeouts++;
+							LOGGER.warn("Timed out after {} ms waiting for a connection to VDX {}", checkoutTimeout, name);
+							throw new Valve3Exception("VDX server " + name + " is busy, please try again later");
+						}
+						waited = true;
+						await(isBulk, remaining);
+					}
+				}
+
+				long wt = System.currentTimeMillis() - start;
+				checkouts++;
+				if (waited)
+					waits++;
+				waitTime += wt;
+				maxWaitTime = Math.max(maxWaitTime, wt);
+				inUse++;
+				peakInUse = Math.max(peakInUse, inUse);
+				if (isBulk)
+				{
+					bulkInUse++;
+					bulkCheckouts++;
+					if (waited)
+						bulkWaits++;
+					bulk.put(client, Boolean.TRUE);
+				}
+				else
+				{
+					interactiveWaitAvg = interactiveWaitAvg * 0.8 + wt * 0.2;
+					lastInteractive = System.currentTimeMillis();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new Valve3Exception("Interrupted while waiting for a connection to VDX " + name);
+		}
+		finally
+		{
+			if (stale != null)
+				close(stale);
+		}
+		return client;
+	}
+
+	/**
+	 * Return client to the pool; a client marked as failed is closed instead.
+	 * Null is ignored.
+	 * @param client client taken with checkout()
+	 */
+	public void checkin(VDXClient client)
+	{
+		if (client == null)
+			return;
+		boolean failed;
+		synchronized (this)
+		{
+			inUse--;
+			if (bulk.remove(client) != null)
+				bulkInUse--;
+			failed = (invalid.remove(client) != null);
+			if (failed)
+				size--;
+			else
+			{
+				idle.addFirst(client);
+				lastUsed.put(client, System.currentTimeMillis());
+			}
+			// waiters differ by priority, each checks if it may go
+			notifyAll();
+		}
+		if (failed)
+			close(client);
+	}
+
+	/**
+	 * Mark checked out client as failed: its connection is dropped when it
+	 * is checked in, and a new client replaces it.
+	 * @param client client taken with checkout()
+	 */
+	public synchronized void invalidate(VDXClient client)
+	{
+		if (client != null && invalid.put(client, Boolean.TRUE) == null)
+			failures++;
+	}
+
+	/**
+	 * Add pool metrics to status
+	 * @param status status to fill
+	 */
+	public synchronized void addStatus(Status status)
+	{
+		String prefix = "vdx." + name + ".";
+		status.put(prefix + "maxSize", maxSize);
+		status.put(prefix + "size", size);
+		status.put(prefix + "inUse", inUse);
+		status.put(prefix + "peakInUse", peakInUse);
+		status.put(prefix + "checkouts", checkouts);
+		status.put(prefix + "waits", waits);
+		status.put(prefix + "avgWaitMs", checkouts == 0 ? 0 : waitTime / checkouts);
+		status.put(prefix + "maxWaitMs", maxWaitTime);
+		status.put(prefix + "timeouts", timeouts);
+		status.put(prefix + "failures", failures);
+		status.put(prefix + "created", created);
+		status.put(prefix + "expired", expired);
+		status.put(prefix + "bulkMax", bulkMax);
+		status.put(prefix + "bulkLimit", getBulkLimit(System.currentTimeMillis()));
+		status.put(prefix + "bulkInUse", bulkInUse);
+		status.put(prefix + "bulkCheckouts", bulkCheckouts);
+		status.put(prefix + "bulkWaits", bulkWaits);
+		status.put(prefix + "interactiveWaiting", interactiveWaiting);
+		status.put(prefix + "interactiveAvgWaitMs", Math.round(interactiveWaitAvg));
+	}
+
+	/**
+	 * Close idle clients, used on application shutdown
+	 */
+	public void close()
+	{
+		LinkedList<VDXClient> clients;
+		synchronized (this)
+		{
+			clients = new LinkedList<VDXClient>(idle);
+			size -= idle.size();
+			idle.clear();
+			lastUsed.clear();
+		}
+		for (VDXClient client : clients)
+			close(client);
+	}
+
+	/**
+	 * Number of clients bulk checkouts may hold now. Called with the lock held.
+	 */
+	private int getBulkLimit(long now)
+	{
+		if (bulkThrottle > 0 && now - lastInteractive < THROTTLE_WINDOW && interactiveWaitAvg > bulkThrottle)
+			return 1;
+		return bulkMax;
+	}
+
+	/**
+	 * Wait for a checkin, counting waiting interactive checkouts so bulk
+	 * checkouts let them go first. Called with the lock held.
+	 * @param timeout time in ms, 0 to wait indefinitely
+	 */
+	private void await(boolean isBulk, long timeout) throws InterruptedException
+	{
+		if (!isBulk)
+			interactiveWaiting++;
+		try
+		{
+			wait(timeout);
+		}
+		finally
+		{
+			if (!isBulk)
+			{
+				interactiveWaiting--;
+				// bulk waiters held back by this one may go now
+				if (interactiveWaiting == 0)
+					notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Create client, it connects on first request. Called with the lock held.
+	 */
+	private VDXClient newClient()
+	{
+		VDXClient client = new VDXClient(host, port);
+		client.setTimeout(clientTimeout);
+		created++;
+		return client;
+	}
+
+	private void close(VDXClient client)
+	{
+		try
+		{
+			client.close();
+		}
+		catch (Exception e)
+		{
+			LOGGER.debug("Error closing connection to VDX {}: {}", name, e.getMessage());
+		}
+	}
+}
@@ -7,23 +7,18 @@ import gov.usgs.volcanoes.core.legacy.plot.map.GeoLabelSet;
 import gov.usgs.volcanoes.core.legacy.plot.map.MapRenderer;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 
 import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -138,27 +133,10 @@ public class ChannelMapPlotter extends Plotter {
 
     // initialize variables
     List<String> stringList = null;
-    VDXClient client        = null;
     labels                  = new GeoLabelSet();
 
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "channels");
-
-    // checkout a connection to the database, the vdxClient could be null or invalid
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (UtilException e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-    }
+    // channel list is shared through the metadata cache, the vdxClient could be null or invalid
+    stringList = RawDataPlotter.getMetadata(vdxClient, vdxSource, "channels");
 
     // if data was collected, iterate through the list of channels and add a geo label
     if (stringList != null) {
@@ -0,0 +1,131 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.vdx.data.ExportData;
+
+import java.util.Collection;
+
+/**
+ * Walks the prepared export data of one plotter in time order, one row at a time. The data of
+ * several export sources (channels) are merged by time with a {@link TimeHeap}: values of
+ * different sources at the time of a row share that row, sources with no value there get missing
+ * values. Values of one source at the same time get a row each.
+ * Rows are unboxed into one reusable primitive buffer.
+ *
+ * <p>The export data is consumed as rows are read, a cursor can be walked once.
+ */
+class ExportCursor {
+
+  private final ExportData[] sources;
+  private final TimeHeap heap;
+  private final double[][] row;
+  private final boolean[] blank;
+  private final boolean[] filled;
+  private final int[] taken;
+  private double time;
+
+  /**
+   * Constructor.
+   *
+   * @param data export data of a plotter
+   */
+  ExportCursor(Collection<ExportData> data) {
+    sources = new ExportData[data.size()];
+    for (ExportData cd : data) {
+      sources[cd.exportDataId()] = cd;
+    }
+    heap = new TimeHeap(sources.length);
+    row = new double[sources.length][];
+    blank = new boolean[sources.length];
+    filled = new boolean[sources.length];
+    taken = new int[sources.length];
+    for (int id = 0; id < sources.length; id++) {
+      ExportData cd = sources[id];
+      row[id] = new double[cd.dummyExportDatum().length];
+      Double[] datum = cd.currExportDatum();
+      if (datum != null) {
+        heap.add(id, datum[0]);
+      }
+    }
+  }
+
+  /**
+   * Move to the next row.
+   *
+   * @return false if there are no more rows
+   */
+  boolean next() {
+    if (heap.isEmpty()) {
+      return false;
+    }
+    time = heap.firstTime();
+    // One value per source, the source is put back once the row is taken
+    int n = 0;
+    while (!heap.isEmpty() && heap.firstTime() <= time) {
+      int id = heap.first();
+      heap.removeFirst();
+      copy(sources[id].currExportDatum(), row[id]);
+      filled[id] = true;
+      taken[n++] = id;
+    }
+    for (int i = 0; i < n; i++) {
+      int id = taken[i];
+      Double[] datum = sources[id].nextExportDatum();
+      if (datum != null) {
+        heap.add(id, datum[0]);
+      }
+    }
+    for (int id = 0; id < sources.length; id++) {
+      if (filled[id]) {
+        filled[id] = false;
+        blank[id] = false;
+      } else if (!blank[id]) {
+        // values are left missing until the source has data again
+        double[] values = row[id];
+        for (int i = 1; i < values.length; i++) {
+          values[i] = ExportFormatter.MISSING;
+        }
+        blank[id] = true;
+      }
+    }
+    return true;
+  }
+
+  private static void copy(Double[] datum, double[] values) {
+    int n = Math.min(datum.length, values.length);
+    for (int i = 0; i < n; i++) {
+      Double v = datum[i];
+      values[i] = (v == null) ? ExportFormatter.MISSING : v.doubleValue();
+    }
+    for (int i = n; i < values.length; i++) {
+      values[i] = ExportFormatter.MISSING;
+    }
+  }
+
+  /**
+   * Yield time of the current row.
+   *
+   * @return j2ksec
+   */
+  double time() {
+    return time;
+  }
+
+  /**
+   * Yield the current row.
+   *
+   * @return values of each source indexed by source ID, time first, missing values are {@link
+   *     ExportFormatter#MISSING}; valid until the next move
+   */
+  double[][] row() {
+    return row;
+  }
+
+  /**
+   * Yield number of export sources.
+   *
+   * @return number of sources
+   */
+  int sources() {
+    return sources.length;
+  }
+}
@@ -0,0 +1,247 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Reusable character buffer for building export rows without String.format and string
+ * concatenation. Fixed-precision numbers are formatted exactly like {@code %W.Pf} in
+ * java.util.Formatter with a '.' decimal separator: the shortest decimal representation of the
+ * value is rounded half-up, and negative zero keeps its sign.
+ *
+ * <p>Not thread safe; each plotter keeps its own instance.
+ */
+public class ExportFormatter {
+
+  /**
+   * Value of a missing field in primitive rows. It is a NaN, but its bit pattern differs from the
+   * NaN produced by arithmetic, so real NaN data can still be told apart with {@link
+   * #isMissing(double)}.
+   */
+  public static final double MISSING = Double.longBitsToDouble(0x7ff80000000004adL);
+
+  private static final long MISSING_BITS = Double.doubleToRawLongBits(MISSING);
+  private static final int MAX_FAST_PRECISION = 15;
+  private static final double MAX_FAST_SCALED = 4503599627370496.0; // 2^52
+  private static final long[] POW10 = new long[MAX_FAST_PRECISION + 1];
+
+  static {
+    POW10[0] = 1;
+    for (int i = 1; i < POW10.length; i++) {
+      POW10[i] = POW10[i - 1] * 10;
+    }
+  }
+
+  private char[] buf;
+  private int len;
+
+  /**
+   * Default constructor.
+   */
+  public ExportFormatter() {
+    buf = new char[256];
+  }
+
+  /**
+   * Is value the missing field marker.
+   *
+   * @param v value to check
+   * @return true if v is {@link #MISSING}
+   */
+  public static boolean isMissing(double v) {
+    return Double.doubleToRawLongBits(v) == MISSING_BITS;
+  }
+
+  /**
+   * Empty the buffer.
+   *
+   * @return this formatter
+   */
+  public ExportFormatter clear() {
+    len = 0;
+    return this;
+  }
+
+  /**
+   * Yield number of buffered characters.
+   *
+   * @return buffer length
+   */
+  public int length() {
+    return len;
+  }
+
+  /**
+   * Append a character.
+   *
+   * @param c character to append
+   * @return this formatter
+   */
+  public ExportFormatter append(char c) {
+    ensure(1);
+    buf[len++] = c;
+    return this;
+  }
+
+  /**
+   * Append a string, "null" if s is null.
+   *
+   * @param s string to append
+   * @return this formatter
+   */
+  public ExportFormatter append(String s) {
+    if (s == null) {
+      s = "null";
+    }
+    int n = s.length();
+    ensure(n);
+    s.getChars(0, n, buf, len);
+    len += n;
+    return this;
+  }
+
+  /**
+   * Append an integer, like %d.
+   *
+   * @param v value to append
+   * @return this formatter
+   */
+  public ExportFormatter append(long v) {
+    if (v == Long.MIN_VALUE) {
+      return append(Long.toString(v));
+    }
+    if (v < 0) {
+      append('-');
+      v = -v;
+    }
+    appendDigits(v, 1);
+    return this;
+  }
+
+  /**
+   * Append count spaces.
+   *
+   * @param count number of spaces
+   * @return this formatter
+   */
+  public ExportFormatter appendSpaces(int count) {
+    ensure(count);
+    for (int i = 0; i < count; i++) {
+      buf[len++] = ' ';
+    }
+    return this;
+  }
+
+  /**
+   * Append value formatted like String.format("%width.precisionf", v).
+   *
+   * @param v value to append
+   * @param width minimum field width, shorter output is padded with leading spaces
+   * @param precision number of digits after the decimal point
+   * @return this formatter
+   */
+  public ExportFormatter appendFixed(double v, int width, int precision) {
+    if (Double.isNaN(v)) {
+      return appendPadded("NaN", width);
+    }
+    if (Double.isInfinite(v)) {
+      return appendPadded(v > 0 ? "Infinity" : "-Infinity", width);
+    }
+
+    boolean negative = Double.doubleToRawLongBits(v) < 0;
+    double abs = Math.abs(v);
+    if (precision <= MAX_FAST_PRECISION) {
+      double scaled = abs * POW10[precision];
+      if (scaled < MAX_FAST_SCALED) {
+        long q = (long) scaled;
+        double frac = scaled - q;
+
+        // away from a tie the correctly rounded binary value gives the same digits as rounding
+        // the shortest decimal representation; ties are resolved below
+        if (Math.abs(frac - 0.5) > 4 * Math.ulp(scaled)) {
+          if (frac > 0.5) {
+            q++;
+          }
+          int digits = precision + 1;
+          for (long t = q / POW10[precision]; t >= 10; t /= 10) {
+            digits++;
+          }
+          int size = digits + (precision > 0 ? 1 : 0) + (negative ? 1 : 0);
+          appendSpaces(width - size);
+          if (negative) {
+            append('-');
+          }
+          if (precision == 0) {
+            appendDigits(q, 1);
+          } else {
+            appendDigits(q / POW10[precision], 1);
+            append('.');
+            appendDigits(q % POW10[precision], precision);
+          }
+          return this;
+        }
+      }
+    }
+
+    String s = new BigDecimal(Double.toString(abs)).setScale(precision, RoundingMode.HALF_UP)
+        .toPlainString();
+    appendSpaces(width - s.length() - (negative ? 1 : 0));
+    if (negative) {
+      append('-');
+    }
+    return append(s);
+  }
+
+  /**
+   * Write buffered characters.
+   *
+   * @param out writer to write to
+   */
+  public void writeTo(Writer out) throws IOException {
+    out.write(buf, 0, len);
+  }
+
+  /**
+   * Yield buffered characters as string.
+   *
+   * @return buffer contents
+   */
+  public String toString() {
+    return new String(buf, 0, len);
+  }
+
+  private ExportFormatter appendPadded(String s, int width) {
+    appendSpaces(width - s.length());
+    return append(s);
+  }
+
+  /**
+   * Append non-negative value with at least minDigits digits, zero padded.
+   */
+  private void appendDigits(long v, int minDigits) {
+    int digits = 1;
+    for (long t = v; t >= 10; t /= 10) {
+      digits++;
+    }
+    if (digits < minDigits) {
+      digits = minDigits;
+    }
+    ensure(digits);
+    int pos = len + digits;
+    for (int i = 0; i < digits; i++) {
+      buf[--pos] = (char) ('0' + (v % 10));
+      v /= 10;
+    }
+    len += digits;
+  }
+
+  private void ensure(int extra) {
+    if (len + extra > buf.length) {
+      char[] nb = new char[Math.max(buf.length * 2, len + extra)];
+      System.arraycopy(buf, 0, nb, 0, len);
+      buf = nb;
+    }
+  }
+}
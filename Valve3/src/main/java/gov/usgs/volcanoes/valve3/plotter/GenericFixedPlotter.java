@@ -6,15 +6,12 @@ import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.data.GenericDataMatrix;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -22,6 +19,7 @@ import gov.usgs.volcanoes.vdx.data.MatrixExporter;
 import gov.usgs.volcanoes.vdx.data.Rank;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -115,9 +113,6 @@ public class GenericFixedPlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
-    VDXClient client = null;
     channelDataMap = new LinkedHashMap<Integer, GenericDataMatrix>();
     String[] channels = ch.split(",");
 
@@ -130,29 +125,15 @@ public class GenericFixedPlotter extends RawDataPlotter {
     params.put("rk", Integer.toString(rk));
     addDownsamplingInfo(params);
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // fetch the selected channels, the vdxClient could be null or invalid
+    List<Object> dataList = Valve3.getInstance().getDataHandler().getChannelFetcher()
+        .fetch(vdxClient, params, channels);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        GenericDataMatrix data = null;
-        try {
-          data = (GenericDataMatrix) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          logger.debug(exceptionMsg);
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          logger.debug(exceptionMsg);
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        GenericDataMatrix data = (GenericDataMatrix) dataList.get(i);
 
         // if data was collected
         if (data != null && data.rows() > 0) {
@@ -163,14 +144,6 @@ public class GenericFixedPlotter extends RawDataPlotter {
         }
         channelDataMap.put(Integer.valueOf(channel), data);
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
   }
 
@@ -398,7 +371,9 @@ public class GenericFixedPlotter extends RawDataPlotter {
     }
 
     // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp, rank);
 
     if (!forExport) {
@@ -7,13 +7,13 @@ import gov.usgs.volcanoes.core.legacy.plot.render.AxisRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.PointRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.ShapeRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Column;
@@ -150,7 +150,7 @@ public class GenericVariablePlotter extends RawDataPlotter {
     addDownsamplingInfo(params);
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -160,12 +160,13 @@ public class GenericVariablePlotter extends RawDataPlotter {
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       } catch (Exception e) {
+        pool.invalidate(client);
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       }
 
       // if data was collected
-      if (data != null || data.rows() > 0) {
+      if (data != null && data.rows() > 0) {
         data.adjustTime(timeOffset);
       }
 
@@ -332,7 +333,9 @@ public class GenericVariablePlotter extends RawDataPlotter {
       v3p.setExportable(true);
     }
     // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp);
 
     if (!forExport) {
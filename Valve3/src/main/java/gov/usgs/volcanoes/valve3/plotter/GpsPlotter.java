@@ -18,16 +18,13 @@ import gov.usgs.volcanoes.core.legacy.plot.render.Renderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.TextRenderer;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.Column;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -41,6 +38,7 @@ import java.awt.Color;
 import java.awt.geom.Point2D;
 import java.awt.image.RenderedImage;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -116,6 +114,16 @@ public class GpsPlotter extends RawDataPlotter {
     super();
   }
 
+  /**
+   * GPS solutions are usually daily.
+   *
+   * @return sample interval, seconds
+   */
+  @Override
+  protected double getDefaultSampleInterval() {
+    return 86400;
+  }
+
   /**
    * Initialize internal data from PlotComponent.
    *
@@ -323,11 +331,6 @@ public class GpsPlotter extends RawDataPlotter {
   public void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown   = false;
-    String exceptionMsg       = "";
-    boolean blexceptionThrown = false;
-    String blexceptionMsg     = "";
-    VDXClient client          = null;
     channelDataMap            = new LinkedHashMap<Integer, GpsData>();
     String[] channels         = ch.split(",");
 
@@ -340,27 +343,22 @@ public class GpsPlotter extends RawDataPlotter {
     params.put("rk", Integer.toString(rk));
     addDownsamplingInfo(params);
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // if a baseline was selected then retrieve that data along with the channels
+    String[] requested = channels;
+    if (bl != null) {
+      requested = Arrays.copyOf(channels, channels.length + 1);
+      requested[channels.length] = bl;
+    }
+
+    // fetch the selected channels, the vdxClient could be null or invalid
+    List<Object> dataList = Valve3.getInstance().getDataHandler().getChannelFetcher()
+        .fetch(vdxClient, params, requested);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        GpsData data = null;
-        try {
-          data = (GpsData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        GpsData data = (GpsData) dataList.get(i);
 
         // if data was collected
         if (data != null && data.observations() > 0) {
@@ -369,40 +367,18 @@ public class GpsPlotter extends RawDataPlotter {
         channelDataMap.put(Integer.valueOf(channel), data);
       }
 
-      // if a baseline was selected then retrieve that data from the database
       if (bl != null) {
-        params.put("ch", bl);
-        try {
-          baselineData = (GpsData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          blexceptionThrown = true;
-          blexceptionMsg = e.getMessage();
-        } catch (Exception e) {
-          blexceptionThrown = true;
-          blexceptionMsg = e.getMessage();
-        }
+        baselineData = (GpsData) dataList.get(channels.length);
 
         // if data was collected
         if (baselineData != null && baselineData.observations() > 0) {
           baselineData.adjustTime(timeOffset);
         }
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
 
-    // if a data limit message exists, then throw exception
-    if (blexceptionThrown) {
-      throw new Valve3Exception(blexceptionMsg);
-
-      // if no baseline data exists, then throw exception
-    } else if (bl != null && baselineData == null) {
+    // if no baseline data exists, then throw exception
+    if (bl != null && baselineData == null) {
       throw new Valve3Exception("No data for baseline channel.");
     }
   }
@@ -894,7 +870,9 @@ public class GpsPlotter extends RawDataPlotter {
     }
 
     // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp, rank);
 
     if (!forExport) {
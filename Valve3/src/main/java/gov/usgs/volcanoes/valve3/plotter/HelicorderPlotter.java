@@ -5,20 +5,18 @@ import gov.usgs.volcanoes.core.legacy.plot.Plot;
 import gov.usgs.volcanoes.core.legacy.plot.PlotException;
 import gov.usgs.volcanoes.core.data.HelicorderData;
 import gov.usgs.volcanoes.core.legacy.plot.render.HelicorderRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.ExportData;
 import gov.usgs.volcanoes.vdx.data.MatrixExporter;
 
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -90,9 +88,6 @@ public class HelicorderPlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
-    VDXClient client = null;
     channelDataMap = new LinkedHashMap<Integer, HelicorderData>();
     String[] channels = ch.split(",");
 
@@ -103,27 +98,15 @@ public class HelicorderPlotter extends RawDataPlotter {
     params.put("st", Double.toString(startTime));
     params.put("et", Double.toString(endTime));
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // fetch the selected channels, the vdxClient could be null or invalid
+    List<Object> dataList = Valve3.getInstance().getDataHandler().getChannelFetcher()
+        .fetch(vdxClient, params, channels);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        HelicorderData data = null;
-        try {
-          data = (HelicorderData) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        HelicorderData data = (HelicorderData) dataList.get(i);
 
         // if data was collected
         if (data != null && data.rows() > 0) {
@@ -139,17 +122,10 @@ public class HelicorderPlotter extends RawDataPlotter {
 
         channelDataMap.put(Integer.valueOf(channel), data);
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
-    }
-
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
     }
   }
 
+
   /**
    * Loop through the list of channels, initialize renderers and add them to plots.
    *
@@ -272,7 +248,9 @@ public class HelicorderPlotter extends RawDataPlotter {
       v3p.setExportable(true);
     }
     // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp);
 
     if (!forExport) {
@@ -15,7 +15,6 @@ import gov.usgs.volcanoes.core.legacy.plot.render.ShapeRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.transform.ArbDepthCalculator;
 import gov.usgs.volcanoes.core.math.proj.GeoRange;
 import gov.usgs.volcanoes.core.math.proj.TransverseMercator;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
 import gov.usgs.volcanoes.core.util.UtilException;
@@ -23,6 +22,7 @@ import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.ExportData;
@@ -309,7 +309,7 @@ public class LightningPlotter extends RawDataPlotter {
     params.put("outputAll", Boolean.toString(exportAll));
 
     // checkout a connection to the database
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -321,6 +321,7 @@ public class LightningPlotter extends RawDataPlotter {
         exceptionThrown = true;
         exceptionMsg = e.getMessage();
       } catch (Exception e) {
+        pool.invalidate(client);
         strokes = null;
       }
 
@@ -634,7 +635,9 @@ public class LightningPlotter extends RawDataPlotter {
 
     // this is a legitimate request so lookup the data from the database and
     // plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp, rank);
 
     if (!forExport) {
@@ -0,0 +1,120 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV export of components from different data sources or ranks, merged by time. Each component
+ * is prepared by its own plotter; their rows are merged with a {@link TimeHeap} as they are
+ * written, so the merged export is never held in memory. Rows of equal time share a line, a
+ * component with no row at the time of a line gets blank fields there. Data columns are headed by
+ * the label of their component, comments which differ between components are prefixed with it.
+ */
+public class MergedExport {
+
+  private final List<RawDataPlotter> plotters;
+  private final List<String> labels;
+
+  /**
+   * Constructor.
+   *
+   * @param plotters plotters with exports prepared by prepareExport, in column order
+   * @param labels label of each plotter, prefixed to its headers
+   */
+  public MergedExport(List<RawDataPlotter> plotters, List<String> labels) {
+    this.plotters = plotters;
+    this.labels = labels;
+  }
+
+  /**
+   * Write merged export. The prepared exports are consumed, it can be written once.
+   *
+   * @param out writer to write to
+   */
+  public void writeExport(Writer out) throws Valve3Exception, IOException {
+    int count = plotters.size();
+    writeComments(out);
+
+    // A component without data still has its columns, left blank on every line
+    StringBuilder hdrLine = new StringBuilder("Epoch,Date");
+    int[] columns = new int[count];
+    for (int p = 0; p < count; p++) {
+      List<String> hdrs = plotters.get(p).getExportHeaders();
+      columns[p] = hdrs.size();
+      for (String hdr : hdrs) {
+        hdrLine.append(',').append(labels.get(p)).append('_').append(hdr);
+      }
+    }
+    out.write(hdrLine.append('\n').toString());
+
+    ExportCursor[] rows = new ExportCursor[count];
+    TimeHeap heap = new TimeHeap(count);
+    for (int p = 0; p < count; p++) {
+      rows[p] = plotters.get(p).getExportRows();
+      if (rows[p].next()) {
+        heap.add(p, rows[p].time());
+      }
+    }
+    boolean[] hasRow = new boolean[count];
+    int[] advance = new int[count];
+    ExportFormatter line = new ExportFormatter();
+    while (!heap.isEmpty()) {
+      // Take every component with a row at the earliest time
+      double time = heap.firstTime();
+      int n = 0;
+      while (!heap.isEmpty() && heap.firstTime() == time) {
+        int p = heap.first();
+        heap.removeFirst();
+        hasRow[p] = true;
+        advance[n++] = p;
+      }
+      line.clear();
+      RawDataPlotter.appendCSVtime(line, time);
+      for (int p = 0; p < count; p++) {
+        if (hasRow[p]) {
+          plotters.get(p).appendExportRow(line, rows[p]);
+        } else {
+          plotters.get(p).appendExportBlanks(line, columns[p]);
+        }
+      }
+      line.append('\n');
+      line.writeTo(out);
+      for (int i = 0; i < n; i++) {
+        int p = advance[i];
+        hasRow[p] = false;
+        if (rows[p].next()) {
+          heap.add(p, rows[p].time());
+        }
+      }
+    }
+  }
+
+  /**
+   * Write comment lines: lines all components have in common once, the others prefixed with the
+   * label of their component.
+   */
+  private void writeComments(Writer out) throws IOException {
+    List<List<String>> comments = new ArrayList<List<String>>();
+    for (RawDataPlotter plotter : plotters) {
+      comments.add(plotter.getExportComments());
+    }
+    List<String> common = new ArrayList<String>(comments.get(0));
+    for (List<String> lines : comments) {
+      common.retainAll(lines);
+    }
+    for (String comment : common) {
+      out.write("#" + comment + "\n");
+    }
+    for (int p = 0; p < comments.size(); p++) {
+      for (String comment : comments.get(p)) {
+        if (!common.contains(comment)) {
+          out.write("#" + labels.get(p) + ": " + comment + "\n");
+        }
+      }
+    }
+  }
+}
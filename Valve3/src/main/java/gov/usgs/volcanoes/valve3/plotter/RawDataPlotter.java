@@ -9,7 +9,6 @@ import gov.usgs.volcanoes.core.legacy.plot.decorate.SmartTick;
 import gov.usgs.volcanoes.core.legacy.plot.render.AxisRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.LegendRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.MatrixRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.time.Time;
 import gov.usgs.volcanoes.core.util.StringUtils;
@@ -17,6 +16,7 @@ import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.VDXClientPool;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
 import gov.usgs.volcanoes.vdx.ExportConfig;
 import gov.usgs.volcanoes.vdx.client.VDXClient;
@@ -28,6 +28,9 @@ import gov.usgs.volcanoes.vdx.data.Rank;
 import gov.usgs.volcanoes.vdx.data.SuppDatum;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -68,6 +71,9 @@ public abstract class RawDataPlotter extends Plotter {
   protected int downsamplingInterval = 0;
   protected DownsamplingType downsamplingType = DownsamplingType.NONE;
 
+  // with automatic downsampling, plots get about this many points per pixel of width
+  protected static final int AUTO_POINTS_PER_PIXEL = 2;
+
   //count of left ticks
   protected int leftTicks = 0;
 
@@ -87,7 +93,16 @@ public abstract class RawDataPlotter extends Plotter {
   protected Map<Integer, Rank> ranksMap;
 
   protected TreeSet<ExportData> csvData;
-  protected StringBuffer csvText;
+  protected Writer csvOut;
+  private ExportConfig exportConfig;
+  private String[] exportComments;
+  private Vector<String> exportCmtLines;
+  private String exportTimeZone;
+  private String exportRank;
+  private String exportRowTimeZone;
+  private ExportFormatter exportFormatter;
+  private boolean fetchOnly;
+  private PlotComponent fetched;
   protected Map<String, String> csvCmtBits;
   protected Vector<String[]> csvHdrs;
   protected int csvIndex = 0;
@@ -235,11 +250,15 @@ public abstract class RawDataPlotter extends Plotter {
     timeOffset = comp.getOffset(startTime);
     timeZoneID = comp.getTimeZone().getID();
 
-    try {
-      downsamplingType = DownsamplingType.fromString(comp.getString("ds"));
-      downsamplingInterval = comp.getInt("dsInt");
-    } catch (Valve3Exception e) {
-      //Do nothing, default values without downsampling
+    if ("auto".equalsIgnoreCase(comp.get("ds"))) {
+      selectDownsampling(comp);
+    } else {
+      try {
+        downsamplingType = DownsamplingType.fromString(comp.getString("ds"));
+        downsamplingInterval = comp.getInt("dsInt");
+      } catch (Valve3Exception e) {
+        //Do nothing, default values without downsampling
+      }
     }
 
     // plot related parameters
@@ -297,6 +316,41 @@ public abstract class RawDataPlotter extends Plotter {
     }
   }
 
+  /**
+   * Choose downsampling for "auto" mode. If the time span holds more rows at the expected sample
+   * interval than the plot has room for, the data are mean filtered to about
+   * AUTO_POINTS_PER_PIXEL points per pixel of plot width. Exports keep full resolution. The choice
+   * is stored in the component as dsAuto and dsAutoInt, so it shows in the plot XML.
+   *
+   * @param comp plot component
+   */
+  protected void selectDownsampling(PlotComponent comp) {
+    downsamplingType = DownsamplingType.NONE;
+    downsamplingInterval = 0;
+    if (!forExport && endTime != Double.MAX_VALUE) {
+      double span = endTime - startTime;
+      double sampleInterval = StringUtils.stringToDouble(
+          plotterConfig.getString("sampleInterval"), getDefaultSampleInterval());
+      int points = comp.getBoxWidth() * AUTO_POINTS_PER_PIXEL;
+      if (sampleInterval > 0 && points > 0 && span / sampleInterval > points) {
+        downsamplingType = DownsamplingType.MEAN;
+        downsamplingInterval = (int) Math.ceil(span / points);
+      }
+    }
+    comp.put("dsAuto", downsamplingType.toString());
+    comp.put("dsAutoInt", Integer.toString(downsamplingInterval));
+  }
+
+  /**
+   * Yield expected interval between rows of this plotter's data, used by automatic downsampling
+   * when the data source doesn't configure plotter.sampleInterval.
+   *
+   * @return sample interval, seconds
+   */
+  protected double getDefaultSampleInterval() {
+    return 60;
+  }
+
   /**
    * Used during request of data for this plotter, adds downsampling information to request's
    * parameters.
@@ -308,6 +362,20 @@ public abstract class RawDataPlotter extends Plotter {
     params.put("dsInt", Integer.toString(downsamplingInterval));
   }
 
+  /**
+   * Get metadata lines of a vdx source through the metadata cache. The cached lines are shared
+   * between requests, so callers parse them into objects of their own each time: plotters modify
+   * the Channel and Column objects they get.
+   *
+   * @param vdxClient vdx client name
+   * @param vdxSource vdx source name
+   * @param action metadata action: "channels", "ranks", "columns" or "azimuths"
+   * @return unmodifiable list of metadata lines, null if the request failed
+   */
+  static List<String> getMetadata(String vdxClient, String vdxSource, String action) {
+    return Valve3.getInstance().getDataHandler().getMetadata(vdxClient, vdxSource, action);
+  }
+
   /**
    * Initialize list of columns for given vdx source.
    *
@@ -321,30 +389,10 @@ public abstract class RawDataPlotter extends Plotter {
     // initialize variables
     List<String> stringList = null;
     List<Column> columnList = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "columns");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
 
-      // if data was collected
-      if (stringList != null) {
-        columnList = Column.fromStringsToList(stringList);
-      }
+    stringList = getMetadata(vdxClient, vdxSource, "columns");
+    if (stringList != null) {
+      columnList = Column.fromStringsToList(stringList);
     }
 
     return columnList;
@@ -363,30 +411,10 @@ public abstract class RawDataPlotter extends Plotter {
     // initialize variables
     List<String> stringList = null;
     Map<Integer, Channel> channelMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
 
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "channels");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
-
-      // if data was collected
-      if (stringList != null) {
-        channelMap = Channel.fromStringsToMap(stringList);
-      }
+    stringList = getMetadata(vdxClient, vdxSource, "channels");
+    if (stringList != null) {
+      channelMap = Channel.fromStringsToMap(stringList);
     }
 
     return channelMap;
@@ -405,30 +433,10 @@ public abstract class RawDataPlotter extends Plotter {
     // initialize variables
     List<String> stringList = null;
     Map<Integer, Rank> rankMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "ranks");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
 
-      // if data was collected
-      if (stringList != null) {
-        rankMap = Rank.fromStringsToMap(stringList);
-      }
+    stringList = getMetadata(vdxClient, vdxSource, "ranks");
+    if (stringList != null) {
+      rankMap = Rank.fromStringsToMap(stringList);
     }
 
     return rankMap;
@@ -447,33 +455,13 @@ public abstract class RawDataPlotter extends Plotter {
     // initialize variables
     List<String> stringList = null;
     Map<Integer, Double> azimuthMap = null;
-    Pool<VDXClient> pool = null;
-    VDXClient client = null;
-
-    // create a map of all the input parameters
-    Map<String, String> params = new LinkedHashMap<String, String>();
-    params.put("source", vdxSource);
-    params.put("action", "azimuths");
-
-    // checkout a connection to the database
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
-      try {
-        stringList = client.getTextData(params);
-      } catch (Exception e) {
-        stringList = null;
-      } finally {
-        pool.checkin(client);
-      }
 
-      // if data was collected
-      if (stringList != null) {
-        azimuthMap = new LinkedHashMap<Integer, Double>();
-        for (int i = 0; i < stringList.size(); i++) {
-          String[] temp = stringList.get(i).split(":");
-          azimuthMap.put(Integer.valueOf(temp[0]), Double.valueOf(temp[1]));
-        }
+    stringList = getMetadata(vdxClient, vdxSource, "azimuths");
+    if (stringList != null) {
+      azimuthMap = new LinkedHashMap<Integer, Double>();
+      for (int i = 0; i < stringList.size(); i++) {
+        String[] temp = stringList.get(i).split(":");
+        azimuthMap.put(Integer.valueOf(temp[0]), Double.valueOf(temp[1]));
       }
     }
 
@@ -614,6 +602,41 @@ public abstract class RawDataPlotter extends Plotter {
    */
   abstract void getData(PlotComponent comp) throws Valve3Exception;
 
+  /**
+   * Run plot() up to fetching the data: plot settings are applied to v3p and set again by the
+   * plot() call that follows, which then renders the prefetched data.
+   *
+   * @see Plotter#prefetch
+   */
+  public void prefetch(Valve3Plot v3p, PlotComponent comp) throws Valve3Exception, PlotException {
+    fetchOnly = true;
+    try {
+      plot(v3p, comp);
+    } finally {
+      fetchOnly = false;
+    }
+  }
+
+  /**
+   * Request the data with getData() unless it was prefetched; called by plot() of concrete
+   * plotters.
+   *
+   * @param comp plot component
+   * @return false if plot() is prefetching and must stop here
+   */
+  protected boolean fetchData(PlotComponent comp) throws Valve3Exception {
+    if (fetched == comp) {
+      fetched = null;
+      return true;
+    }
+    getData(comp);
+    if (fetchOnly) {
+      fetched = comp;
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Does column contain single character strings.
    *
@@ -624,80 +647,101 @@ public abstract class RawDataPlotter extends Plotter {
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText.
+   * Format time and data with the given width and precision (and blank fields for missing
+   * values); write to csvOut.
    *
-   * @param data data for line
+   * @param data data for line, missing values are ExportFormatter.MISSING
    * @param time time for data
-   * @param decFmt how to format numbers
-   * @param nullField what to use for missing fields
+   * @param width minimum width of numbers
+   * @param precision digits after the decimal point
    */
-  private void addCSVline(Double[][] data, Double time, String decFmt, String nullField) {
-    String line;
-    String firstDecFmt;
-    String nextDecFmt;
+  private void addCSVline(double[][] data, double time, int width, int precision)
+      throws IOException {
+    ExportFormatter line = exportFormatter.clear();
     if (inclTime) {
-      line = String.format("%14.3f,", Time.j2kToEw(time)) + J2kSec.toDateString(time);
-      firstDecFmt = "," + decFmt;
-    } else {
-      line = "";
-      firstDecFmt = decFmt;
+      appendCSVtime(line, time);
     }
-    nextDecFmt = "," + decFmt;
-    for (Double[] group : data) {
+    appendCSVvalues(line, data, width, precision, inclTime);
+    line.append('\n');
+    line.writeTo(csvOut);
+  }
+
+  /**
+   * Append the Epoch and Date fields of a CSV line.
+   *
+   * @param line line being built
+   * @param time time of line
+   */
+  static void appendCSVtime(ExportFormatter line, double time) {
+    line.appendFixed(Time.j2kToEw(time), 14, 3).append(',').append(J2kSec.toDateString(time));
+  }
+
+  /**
+   * Append the data fields of a CSV line, blank fields for missing values.
+   *
+   * @param line line being built
+   * @param data data for line, missing values are ExportFormatter.MISSING
+   * @param width minimum width of numbers
+   * @param precision digits after the decimal point
+   * @param firstComma whether the line already has fields
+   */
+  private void appendCSVvalues(ExportFormatter line, double[][] data, int width, int precision,
+      boolean firstComma) {
+    for (double[] group : data) {
       for (int i = 1; i < group.length; i++) {
-        Double v = group[i];
-        if (v == null) {
-          line += nullField;
+        double v = group[i];
+        if (ExportFormatter.isMissing(v)) {
+          line.append(',').appendSpaces(width);
         } else if (isCharColumn(i)) {
           if (v == Double.NaN || v > 255) {
-            line += ", ";
+            line.append(", ");
           } else {
-            line += "," + new Character((char) (v.intValue()));
+            line.append(',').append((char) (int) v);
           }
         } else {
-          line += String.format(i == 1 ? firstDecFmt : nextDecFmt, v);
+          if (i > 1 || firstComma) {
+            line.append(',');
+          }
+          line.appendFixed(v, width, precision);
         }
       }
     }
-    csvText.append(line);
-    csvText.append("\n");
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText (in XML
-   * format).
+   * Format time and data with the given width and precision; write to csvOut (in XML format).
    *
-   * @param data data for line
+   * @param data data for line, missing values are ExportFormatter.MISSING
    * @param time time for data
-   * @param decFmt how to format numbers
+   * @param width minimum width of numbers
+   * @param precision digits after the decimal point
    * @param pos line number
    * @param timeZone name of time zone
    * @param rank Default rank
    */
-  private void addXMLline(Double[][] data, Double time, String decFmt, int pos, String timeZone,
-      String rank) {
+  private void addXMLline(double[][] data, double time, int width, int precision, int pos,
+      String timeZone, String rank) throws IOException {
     boolean hasChannels = (csvHdrs.get(1)[2] != null);  // Export has channel information
-    String line;                    // Export line being added
+    ExportFormatter line = exportFormatter.clear();    // Export line being added
 
     /* If first line, add header tag */
     if (pos == 1) {
-      line = "\t<DATA>\n";
-    } else {
-      line = "";
+      line.append("\t<DATA>\n");
     }
     /* Tag for a row of data */
-    line += String.format("\t\t<ROW pos=\"%d\">\n", pos);
+    line.append("\t\t<ROW pos=\"").append(pos).append("\">\n");
     if (inclTime) {
-      line += String.format("\t\t\t<EPOCH>%1.3f</EPOCH>\n\t\t\t<TIMESTAMP>%s</TIMESTAMP>\n",
-          Time.j2kToEw(time), J2kSec.toDateString(time));
-      line += "\t\t\t<TIMEZONE>" + timeZone + "</TIMEZONE>\n";
+      line.append("\t\t\t<EPOCH>").appendFixed(Time.j2kToEw(time), 1, 3)
+          .append("</EPOCH>\n\t\t\t<TIMESTAMP>").append(J2kSec.toDateString(time))
+          .append("</TIMESTAMP>\n");
+      line.append("\t\t\t<TIMEZONE>").append(timeZone).append("</TIMEZONE>\n");
     }
     String channel = "";    // Channel name
     String tab = "\t\t\t";    // Indent for contents of a row
     int hdrIdx = 1;      // Current column of export
     boolean hasRank = (!rank.equals(""));    // Export has rank information
 
-    for (Double[] group : data) {
+    for (double[] group : data) {
       for (int i = 1; i < group.length; i++) {
         hdrIdx++;
         String[] hdr = csvHdrs.get(hdrIdx);  // Info about data value
@@ -706,10 +750,10 @@ public abstract class RawDataPlotter extends Plotter {
         if (hasChannels) {
           if (!channel.equals(hdr[2])) {
             if (i > 1) {
-              line += "\t\t\t</CHANNEL>\n";
+              line.append("\t\t\t</CHANNEL>\n");
             }
             channel = hdr[2];
-            line += "\t\t\t<CHANNEL>\n\t\t\t\t<code>" + channel + "</code>\n";
+            line.append("\t\t\t<CHANNEL>\n\t\t\t\t<code>").append(channel).append("</code>\n");
             tab = "\t\t\t\t";
             showRank = true;
           }
@@ -718,73 +762,73 @@ public abstract class RawDataPlotter extends Plotter {
         }
         if (showRank) {
           if (hdr[1] != null) {
-            line += tab + "<rank>" + hdr[1] + "</rank>\n";
+            line.append(tab).append("<rank>").append(hdr[1]).append("</rank>\n");
           } else if (hasRank) {
-            line += tab + "<rank>" + rank + "</rank>\n";
+            line.append(tab).append("<rank>").append(rank).append("</rank>\n");
           }
         }
 
-        Double v = group[i];    // Actual exported data value
-        if (v != null) {
-          line += tab + "<" + tag + ">";
+        double v = group[i];    // Actual exported data value
+        if (!ExportFormatter.isMissing(v)) {
+          line.append(tab).append('<').append(tag).append('>');
           if (isCharColumn(i)) {
             if (v == Double.NaN || v > 255) {
               ;
             } else {
-              line += new Character((char) (v.intValue()));
+              line.append((char) (int) v);
             }
           } else {
-            line += String.format(decFmt, v);
+            line.appendFixed(v, width, precision);
           }
-          line += "</" + tag + ">\n";
+          line.append("</").append(tag).append(">\n");
         }
       }
     }
     if (hasChannels) {
-      line += "\t\t\t</CHANNEL>\n";
+      line.append("\t\t\t</CHANNEL>\n");
     }
-    csvText.append(line);
-    csvText.append("\t\t</ROW>\n");
+    line.append("\t\t</ROW>\n");
+    line.writeTo(csvOut);
   }
 
   /**
-   * Format time and data using decFmt (and nullField for empty fields); append to csvText (in JSON
-   * format).
+   * Format time and data with the given width and precision; write to csvOut (in JSON format).
    *
-   * @param data data for line
+   * @param data data for line, missing values are ExportFormatter.MISSING
    * @param time time for data
-   * @param decFmt how to format numbers
+   * @param width minimum width of numbers
+   * @param precision digits after the decimal point
    * @param pos line number
    * @param timeZone name of time zone
    * @param rank Default rank
    */
-  private void addJsonLine(Double[][] data, Double time, String decFmt, int pos, String timeZone,
-      String rank) {
+  private void addJsonLine(double[][] data, double time, int width, int precision, int pos,
+      String timeZone, String rank) throws IOException {
     boolean hasChannels = (csvHdrs.get(1)[2] != null);  // Export has channel information
-    String line;                    // Export line being added
+    ExportFormatter line = exportFormatter.clear();    // Export line being added
 
     /* If first line, add header tag */
     if (pos == 1) {
-      line = "\t\"data\":[\n";
+      line.append("\t\"data\":[\n");
     } else {
-      line = ",\n";
+      line.append(",\n");
     }
-    line += "\t\t{";
+    line.append("\t\t{");
     if (inclTime) {
-      line += String.format("\"EPOCH\":%1.3f,\"TIMESTAMP\":\"%s\",", Time.j2kToEw(time),
-          J2kSec.toDateString(time));
-      line += "\"TIMEZONE\":\"" + timeZone + "\"" + (hasChannels ? ",\n" : "");
+      line.append("\"EPOCH\":").appendFixed(Time.j2kToEw(time), 1, 3)
+          .append(",\"TIMESTAMP\":\"").append(J2kSec.toDateString(time)).append("\",");
+      line.append("\"TIMEZONE\":\"").append(timeZone).append('"').append(hasChannels ? ",\n" : "");
     }
 
     if (hasChannels) {
-      line += "\t\t\"CHANNELS\":[\n";
+      line.append("\t\t\"CHANNELS\":[\n");
     }
     String channel = "";
     int hdrIdx = 1;      // Current column of export
     boolean hasRank = (!rank.equals(""));    // Export has rank information
-    for (Double[] group : data) {
+    for (double[] group : data) {
       if (hdrIdx != 1 && hasChannels) {
-        line += ",\n";
+        line.append(",\n");
       }
       for (int i = 1; i < group.length; i++) {
         hdrIdx++;
@@ -794,7 +838,7 @@ public abstract class RawDataPlotter extends Plotter {
         if (hasChannels) {
           if (!channel.equals(hdr[2])) {
             channel = hdr[2];
-            line += "\t\t\t{\"code\":\"" + channel + "\"";
+            line.append("\t\t\t{\"code\":\"").append(channel).append('"');
             showRank = true;
           }
         } else {
@@ -802,32 +846,32 @@ public abstract class RawDataPlotter extends Plotter {
         }
         if (showRank) {
           if (hdr[1] != null) {
-            line += ",\n\t\t\t\"rank\":\"" + hdr[1] + "\"";
+            line.append(",\n\t\t\t\"rank\":\"").append(hdr[1]).append('"');
           } else if (hasRank) {
-            line += ",\n\t\t\t\"rank\":\"" + rank + "\"";
+            line.append(",\n\t\t\t\"rank\":\"").append(rank).append('"');
           }
         }
 
-        Double v = group[i];
-        if (v != null) {
-          line += String.format(",\n\t\t\t\"%s\":", tag);
+        double v = group[i];
+        if (!ExportFormatter.isMissing(v)) {
+          line.append(",\n\t\t\t\"").append(tag).append("\":");
           if (isCharColumn(i)) {
             if (v == Double.NaN || v > 255) {
-              line += "\"\"";
+              line.append("\"\"");
             } else {
-              line += "\"" + new Character((char) (v.intValue())) + "\"";
+              line.append('"').append((char) (int) v).append('"');
             }
           } else {
-            line += String.format(decFmt, v);
+            line.appendFixed(v, width, precision);
           }
         }
       }
-      line += "}";
+      line.append('}');
     }
-    csvText.append(line);
     if (hasChannels) {
-      csvText.append("\n\t\t]}");
+      line.append("\n\t\t]}");
     }
+    line.writeTo(csvOut);
   }
 
   private int vaxOrder = 0;
@@ -880,29 +924,62 @@ public abstract class RawDataPlotter extends Plotter {
    */
   public String toExport(PlotComponent comp, Map<String, String> cmtBits, OutputStream seedOut)
       throws Valve3Exception {
+    prepareExport(comp, cmtBits);
+    StringWriter out = new StringWriter();
+    try {
+      writeExport(out, seedOut);
+    } catch (IOException e) {
+      throw new Valve3Exception(e.getMessage());
+    }
+    return out.toString();
+  }
+
+  /**
+   * Check export permission, get the data to export and build the header and comment lines.
+   * Everything that can fail for reasons other than output is done here, so errors can still be
+   * reported before any output is written.
+   *
+   * @param comp plot component
+   * @param cmtBits comment info to add after configured comments
+   */
+  public void prepareExport(PlotComponent comp, Map<String, String> cmtBits)
+      throws Valve3Exception {
+    prepareExport(comp, cmtBits, false);
+  }
+
+  /**
+   * Prepare export, see {@link #prepareExport(PlotComponent, Map)}.
+   *
+   * @param comp plot component
+   * @param cmtBits comment info to add after configured comments
+   * @param allowEmpty whether an export without data is kept rather than refused, for a component
+   *     of a merged export
+   */
+  public void prepareExport(PlotComponent comp, Map<String, String> cmtBits, boolean allowEmpty)
+      throws Valve3Exception {
 
     // Get export configuration parameters
-    ExportConfig ec = getExportConfig(vdxSource, vdxClient);
+    exportConfig = getExportConfig(vdxSource, vdxClient);
     outputType = comp.get("o");
     boolean outToCsv = outputType.equals("csv");
     boolean outToXml = outputType.equals("xml");
     boolean outToJson = outputType.equals("json");
-    Vector<String> cmtLines = new Vector<String>();
+    exportCmtLines = new Vector<String>();
     inclTime = outToCsv || outToXml || outToJson;
 
-    if (!(Valve3.getInstance().getOpenDataURL().equalsIgnoreCase(comp.get("requestserver"))) && !ec
-        .isExportable()) {
+    if (!(Valve3.getInstance().getOpenDataURL().equalsIgnoreCase(comp.get("requestserver")))
+        && !exportConfig.isExportable()) {
       throw new Valve3Exception("Requested export not allowed");
     }
 
     // Get opening comment line(s)
-    String[] comments = ec.getComments();
-    if (comments == null) {
-      comments = new String[]{};
+    exportComments = exportConfig.getComments();
+    if (exportComments == null) {
+      exportComments = new String[]{};
     }
 
     // Add the common column headers
-    String timeZone = comp.getTimeZone().getID();
+    exportTimeZone = comp.getTimeZone().getID();
     if (inclTime) {
       String[] h1 = {null, null, null, "Epoch"};
       String[] h2 = {null, null, null, "Date"};
@@ -910,7 +987,7 @@ public abstract class RawDataPlotter extends Plotter {
       csvHdrs.add(h2);
     }
 
-    // Fill csvData with data to be exported; also completes csvText
+    // Fill csvData with data to be exported
     csvData = new TreeSet<ExportData>();
     csvIndex = 0;
     try {
@@ -918,32 +995,141 @@ public abstract class RawDataPlotter extends Plotter {
     } catch (PlotException e) {
       logger.error("{}", e.getMessage());
     }
-    String rank = "";
-    String rowTimeZone = "";
+    if (!allowEmpty && !hasExportRows()) {
+      throw new Valve3Exception("No data to export");
+    }
+    exportRank = "";
+    exportRowTimeZone = "";
     if (cmtBits != null) {
-      cmtLines.add("reqtime=" + cmtBits.get("reqtime"));
-      cmtLines.add("URL=" + cmtBits.get("URL"));
-      cmtLines.add("source=" + cmtBits.get("source"));
-      cmtLines.add("st=" + cmtBits.get("st") + ", et="
+      exportCmtLines.add("reqtime=" + cmtBits.get("reqtime"));
+      exportCmtLines.add("URL=" + cmtBits.get("URL"));
+      exportCmtLines.add("source=" + cmtBits.get("source"));
+      exportCmtLines.add("st=" + cmtBits.get("st") + ", et="
                    + cmtBits.get("et") + ", chCnt=" + cmtBits.get("chCnt"));
-      rank = cmtBits.get("rank");
-      rowTimeZone = cmtBits.get("timezone");
+      exportRank = cmtBits.get("rank");
+      exportRowTimeZone = cmtBits.get("timezone");
     }
     if (csvCmtBits.containsKey("sr")) {
-      cmtLines.add("sr=" + csvCmtBits.get("sr"));
+      exportCmtLines.add("sr=" + csvCmtBits.get("sr"));
     }
     if (csvCmtBits.containsKey("datatype")) {
-      cmtLines.add("datatype=" + csvCmtBits.get("datatype"));
+      exportCmtLines.add("datatype=" + csvCmtBits.get("datatype"));
+    }
+    csvCmtBits = new LinkedHashMap<String, String>();
+  }
+
+  /**
+   * Write export prepared by prepareExport. Rows are formatted one at a time straight to the
+   * given writer, so output of any size needs no more memory than the exported data itself.
+   *
+   * @param out writer to write text export to
+   * @param seedOut stream to write seed data to, or null for text export
+   */
+  public void writeExport(Writer out, OutputStream seedOut) throws Valve3Exception, IOException {
+    csvOut = out;
+    if (exportFormatter == null) {
+      exportFormatter = new ExportFormatter();
+    }
+    try {
+      writeExportText(seedOut);
+    } finally {
+      csvOut = null;
+    }
+  }
+
+  /**
+   * Yield comment lines of export prepared by prepareExport: configured comments, then the
+   * request info.
+   *
+   * @return comment lines, without leading '#'
+   */
+  List<String> getExportComments() {
+    List<String> lines = new ArrayList<String>();
+    for (String comment : exportComments) {
+      lines.add(comment);
     }
-    csvText = new StringBuffer();
-    Vector<String> myCmtLines = cmtLines;
+    lines.addAll(exportCmtLines);
+    return lines;
+  }
+
+  /**
+   * Check if export prepared by prepareExport has any data.
+   *
+   * @return true if there is at least one row to write
+   */
+  public boolean hasExportRows() {
+    for (ExportData cd : csvData) {
+      if (cd.currExportDatum() != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Yield CSV headers of the data columns of export prepared by prepareExport.
+   *
+   * @return headers, without the time columns
+   */
+  List<String> getExportHeaders() {
+    List<String> hdrs = new ArrayList<String>();
+    for (int i = inclTime ? 2 : 0; i < csvHdrs.size(); i++) {
+      String[] s = csvHdrs.get(i);
+      hdrs.add(s[2] != null ? s[2] + "_" + s[3] : s[3]);
+    }
+    return hdrs;
+  }
+
+  /**
+   * Yield rows of export prepared by prepareExport, for merging with the rows of other plotters.
+   *
+   * @return cursor before the first row
+   */
+  ExportCursor getExportRows() {
+    return new ExportCursor(csvData);
+  }
+
+  /**
+   * Append the data fields of the current row of an export cursor to a CSV line.
+   *
+   * @param line line being built, time already appended
+   * @param rows cursor from getExportRows
+   */
+  void appendExportRow(ExportFormatter line, ExportCursor rows) {
+    int[] fixedWidth = exportConfig.getFixedWidth();
+    appendCSVvalues(line, rows.row(), fixedWidth[0], fixedWidth[1], true);
+  }
+
+  /**
+   * Append blank data fields to a CSV line, for a time this export has no row at.
+   *
+   * @param line line being built, time already appended
+   * @param columns number of fields
+   */
+  void appendExportBlanks(ExportFormatter line, int columns) {
+    int width = exportConfig.getFixedWidth()[0];
+    for (int i = 0; i < columns; i++) {
+      line.append(',').appendSpaces(width);
+    }
+  }
+
+  private void writeExportText(OutputStream seedOut) throws Valve3Exception, IOException {
+    ExportConfig ec = exportConfig;
+    boolean outToCsv = outputType.equals("csv");
+    boolean outToXml = outputType.equals("xml");
+    boolean outToJson = outputType.equals("json");
+    String[] comments = exportComments;
+    Vector<String> myCmtLines = exportCmtLines;
+    String timeZone = exportTimeZone;
+    String rank = exportRank;
+    String rowTimeZone = exportRowTimeZone;
 
     if (outToCsv) {
       for (String comment : comments) {
-        csvText.append("#" + comment + "\n");
+        csvOut.write("#" + comment + "\n");
       }
       for (String comment : myCmtLines) {
-        csvText.append("#" + comment + "\n");
+        csvOut.write("#" + comment + "\n");
       }
       StringBuffer hdrLine = new StringBuffer();
       boolean first = true;
@@ -961,49 +1147,45 @@ public abstract class RawDataPlotter extends Plotter {
           hdrLine.append("," + hdr);
         }
       }
-      csvText.append(hdrLine);
+      csvOut.write(hdrLine.toString());
       csvHdrs = new Vector<String[]>();
-      csvText.append("\n");
+      csvOut.write("\n");
     }
     if (outToXml) {
-      csvText.append("<VALVE_XML>\n\t<COMMENTS>\n");
+      csvOut.write("<VALVE_XML>\n\t<COMMENTS>\n");
       int i = 1;
       for (String comment : comments) {
-        csvText.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
+        csvOut.write("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
             + "</COMMENTLINE>\n");
         i++;
       }
       for (String comment : myCmtLines) {
-        csvText.append("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
+        csvOut.write("\t\t<COMMENTLINE pos=\"" + i + "\">" + comment.replaceAll("&", "&amp;")
             + "</COMMENTLINE>\n");
         i++;
       }
-      csvText.append("\t</COMMENTS>\n");
+      csvOut.write("\t</COMMENTS>\n");
     }
     if (outToJson) {
-      csvText.append("{\"valve-json\":\n\t{\"comments\":");
+      csvOut.write("{\"valve-json\":\n\t{\"comments\":");
       String sep = "[\n\t\t\"";
       for (String comment : comments) {
-        csvText.append(sep + comment);
+        csvOut.write(sep + comment);
         sep = "\",\n\t\t\"";
       }
       for (String comment : myCmtLines) {
-        csvText.append(sep + comment);
+        csvOut.write(sep + comment);
         sep = "\",\n\t\t\"";
       }
       if (sep.charAt(0) == '[') {
-        csvText.append("[],\n");
+        csvOut.write("[],\n");
       } else {
-        csvText.append("\"],\n");
+        csvOut.write("\"],\n");
       }
     }
-    csvCmtBits = new LinkedHashMap<String, String>();
 
-    // currLine is an array of the current row of data from each source, indexed by that source's ID
-    Double[][] currLine = new Double[csvData.size()][];
-    String decFmt = "%" + ec.getFixedWidth()[0] + "." + ec.getFixedWidth()[1] + "f";
-    String jxDecFmt = "%1." + ec.getFixedWidth()[1] + "f";
-    String nullField = String.format(",%" + ec.getFixedWidth()[0] + "s", "");
+    int width = ec.getFixedWidth()[0];
+    int precision = ec.getFixedWidth()[1];
 
     if (seedOut != null) {
       try {
@@ -1118,113 +1300,31 @@ public abstract class RawDataPlotter extends Plotter {
       } catch (IOException e) {
         throw new Valve3Exception("Error writing mseed file: " + e.getMessage());
       }
-    } else if (currLine.length == 1) {
-      // Since there's only 1 source, we can just loop through it
-      ExportData cd = csvData.first();
-      Double[] datum = cd.currExportDatum();
-      if (outToCsv) {
-        while (datum != null) {
-          currLine[0] = datum;
-          addCSVline(currLine, datum[0], decFmt, nullField);
-          datum = cd.nextExportDatum();
-        }
-      }
-      cd = csvData.first();
-      datum = cd.currExportDatum();
-      if (outToXml) {
-        int pos = 0;
-        while (datum != null) {
-          pos++;
-          currLine[0] = datum;
-          addXMLline(currLine, datum[0], jxDecFmt, pos, rowTimeZone, rank);
-          datum = cd.nextExportDatum();
-        }
-      }
-      cd = csvData.first();
-      datum = cd.currExportDatum();
-      if (outToJson) {
-        int pos = 0;
-        while (datum != null) {
-          pos++;
-          currLine[0] = datum;
-          addJsonLine(currLine, datum[0], jxDecFmt, pos, rowTimeZone, rank);
-          datum = cd.nextExportDatum();
-        }
-      }
     } else {
-      // An array of our data sources, indexed by ID
-      ExportData[] sources = new ExportData[csvData.size()];
-      for (ExportData cd : csvData) {
-        sources[cd.exportDataId()] = cd;
-        currLine[cd.exportDataId()] = cd.dummyExportDatum();
-      }
-
-      // prevTime is the time of the last row formatted into csvText
-      Double prevTime = null;
+      ExportCursor rows = new ExportCursor(csvData);
+      // A single source is written without padding in XML and JSON
+      int tagWidth = (rows.sources() == 1) ? 1 : width;
       int pos = 0;
-      while (true) {
-        ExportData loED;
-        try {
-          // Grab the ExportData whose next datum has the earliest time
-          loED = csvData.first();
-        } catch (Exception e) {
-          loED = null;
+      while (rows.next()) {
+        pos++;
+        double[][] row = rows.row();
+        if (outToCsv) {
+          addCSVline(row, rows.time(), width, precision);
         }
-
-        if (prevTime != null) {
-          int cmp = -1;
-          if (loED != null) {
-            Double[] l = loED.currExportDatum();
-            Double l0 = l[0];
-            cmp = prevTime.compareTo(l0);
-          }
-          if (cmp < 0) {
-            pos++;
-            // Add the current line to csvText
-            if (outToCsv) {
-              addCSVline(currLine, prevTime, decFmt, nullField);
-            }
-            if (outToXml) {
-              addXMLline(currLine, prevTime, decFmt, pos, rowTimeZone, rank);
-            }
-            if (outToJson) {
-              addJsonLine(currLine, prevTime, decFmt, pos, rowTimeZone, rank);
-            }
-            if (loED == null) {
-              // No new data; we're done!
-              break;
-            }
-            // "Erase" the current line
-            for (ExportData cd : sources) {
-              currLine[cd.exportDataId()] = cd.dummyExportDatum();
-            }
-            prevTime = loED.currExportDatum()[0];
-          }
-        } else if (loED != null) {
-          // This is our first item
-          prevTime = loED.currExportDatum()[0];
-        } else {
-          throw new Valve3Exception("No data to export");
+        if (outToXml) {
+          addXMLline(row, rows.time(), tagWidth, precision, pos, rowTimeZone, rank);
         }
-        // Add current item to current line
-        currLine[loED.exportDataId()] = loED.currExportDatum();
-
-        // Remove & add our ExportData back so that it gets placed based on its new data
-        csvData.remove(loED);
-        if (loED.nextExportDatum() != null) {
-          csvData.add(loED);
+        if (outToJson) {
+          addJsonLine(row, rows.time(), tagWidth, precision, pos, rowTimeZone, rank);
         }
       }
     }
     if (outToXml) {
-      csvText.append("\t</DATA>\n</VALVE_XML>\n");
+      csvOut.write("\t</DATA>\n</VALVE_XML>\n");
     }
     if (outToJson) {
-      csvText.append("]}}\n");
+      csvOut.write("]}}\n");
     }
-    String result = csvText.toString();
-    csvText = null;
-    return result;
   }
 
   class AxisParameters {
@@ -1437,7 +1537,7 @@ public abstract class RawDataPlotter extends Plotter {
       }
     }
     params.put("col", cols);
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -1529,7 +1629,7 @@ public abstract class RawDataPlotter extends Plotter {
 
     // define the box height
     int compBoxHeight = comp.getBoxHeight();
-    Pool<VDXClient> pool = null;
+    VDXClientPool pool = null;
     pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
     if (pool != null) {
       client = pool.checkout();
@@ -0,0 +1,106 @@
+package gov.usgs.volcanoes.valve3.plotter;
+
+/**
+ * Binary min-heap of stream indexes keyed by the time of each stream's current row, for k-way
+ * merges of time ordered streams. Times are kept in a primitive array indexed by stream, so
+ * moving a stream to its next row is one sift with no allocation or boxing.
+ */
+class TimeHeap {
+
+  private final int[] heap;
+  private final double[] times;
+  private int size;
+
+  /**
+   * Constructor.
+   *
+   * @param streams number of streams, indexes run from 0 to streams - 1
+   */
+  TimeHeap(int streams) {
+    heap = new int[streams];
+    times = new double[streams];
+  }
+
+  /**
+   * Add a stream.
+   *
+   * @param index stream index, not in the heap
+   * @param time time of stream's current row
+   */
+  void add(int index, double time) {
+    times[index] = time;
+    int i = size++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!less(index, heap[parent])) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = index;
+  }
+
+  /**
+   * Is the heap empty.
+   *
+   * @return true if no stream is left
+   */
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Yield stream with the earliest current row.
+   *
+   * @return stream index
+   */
+  int first() {
+    return heap[0];
+  }
+
+  /**
+   * Yield earliest time of the streams.
+   *
+   * @return time of first stream's current row
+   */
+  double firstTime() {
+    return times[heap[0]];
+  }
+
+  /**
+   * Remove the first stream, it is added again with its next row if it has one.
+   */
+  void removeFirst() {
+    size--;
+    if (size > 0) {
+      siftDown(heap[size]);
+    }
+  }
+
+  private void siftDown(int index) {
+    int i = 0;
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && less(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!less(heap[child], index)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = index;
+  }
+
+  /**
+   * Order by time, then by index so equal times come out in stream order.
+   */
+  private boolean less(int a, int b) {
+    double ta = times[a];
+    double tb = times[b];
+    return ta < tb || (ta == tb && a < b);
+  }
+}
@@ -8,21 +8,20 @@ import gov.usgs.volcanoes.core.data.SliceWave;
 import gov.usgs.volcanoes.core.data.Wave;
 import gov.usgs.volcanoes.core.legacy.plot.render.wave.SpectraRenderer;
 import gov.usgs.volcanoes.core.legacy.plot.render.wave.SpectrogramRenderer;
-import gov.usgs.volcanoes.core.legacy.util.Pool;
 import gov.usgs.volcanoes.core.time.J2kSec;
 import gov.usgs.volcanoes.core.util.StringUtils;
-import gov.usgs.volcanoes.core.util.UtilException;
 import gov.usgs.volcanoes.valve3.PlotComponent;
 import gov.usgs.volcanoes.valve3.Plotter;
 import gov.usgs.volcanoes.valve3.Valve3;
 import gov.usgs.volcanoes.valve3.Valve3Exception;
 import gov.usgs.volcanoes.valve3.result.Valve3Plot;
-import gov.usgs.volcanoes.vdx.client.VDXClient;
 import gov.usgs.volcanoes.vdx.data.Channel;
 import gov.usgs.volcanoes.vdx.data.ExportData;
 import gov.usgs.volcanoes.vdx.data.wave.SliceWaveExporter;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -61,8 +60,10 @@ public class WavePlotter extends RawDataPlotter {
   private boolean logPower;
   private boolean logFreq;
   private Map<Integer, SliceWave> channelDataMap;
+  private boolean envelope;
 
   private static final double MAX_DATA_REQUEST = 86400;
+  private static final int ENVELOPE_SAMPLES = 4;
 
   /**
    * Default constructor.
@@ -82,6 +83,7 @@ public class WavePlotter extends RawDataPlotter {
     if (endTime - startTime > MAX_DATA_REQUEST) {
       throw new Valve3Exception("Maximum waveform request is 24 hours.");
     }
+    envelope = StringUtils.stringToBoolean(plotterConfig.getString("envelope"), true);
 
     String pt = comp.get("plotType");
     if (pt == null) {
@@ -182,9 +184,6 @@ public class WavePlotter extends RawDataPlotter {
   protected void getData(PlotComponent comp) throws Valve3Exception {
 
     // initialize variables
-    boolean exceptionThrown = false;
-    String exceptionMsg = "";
-    VDXClient client = null;
     channelDataMap = new LinkedHashMap<Integer, SliceWave>();
     String[] channels = ch.split(",");
 
@@ -195,27 +194,15 @@ public class WavePlotter extends RawDataPlotter {
     params.put("st", Double.toString(startTime));
     params.put("et", Double.toString(endTime));
 
-    // checkout a connection to the database
-    Pool<VDXClient> pool = null;
-    pool = Valve3.getInstance().getDataHandler().getVDXClient(vdxClient);
-    if (pool != null) {
-      client = pool.checkout();
+    // fetch the selected channels, the vdxClient could be null or invalid
+    List<Object> dataList = Valve3.getInstance().getDataHandler().getChannelFetcher()
+        .fetch(vdxClient, params, channels);
+    if (dataList != null) {
 
       // iterate through each of the selected channels and place the data in the map
-      for (String channel : channels) {
-        params.put("ch", channel);
-        Wave data = null;
-        try {
-          data = (Wave) client.getBinaryData(params);
-        } catch (UtilException e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        } catch (Exception e) {
-          exceptionThrown = true;
-          exceptionMsg = e.getMessage();
-          break;
-        }
+      for (int i = 0; i < channels.length; i++) {
+        String channel = channels[i];
+        Wave data = (Wave) dataList.get(i);
 
         // if data was collected
         if (data != null) {
@@ -296,20 +283,80 @@ public class WavePlotter extends RawDataPlotter {
             }
             data.subtract(bias);
           }
+          if (!forExport && plotType == PlotType.WAVEFORM && envelope) {
+            // drawing cost and heap held by the plot then depend on the box width only
+            data = toEnvelope(data, comp.getBoxWidth(), startTime + timeOffset,
+                endTime + timeOffset);
+          }
           wave = new SliceWave(data);
           wave.setSlice(data.getStartTime(), data.getEndTime());
           channelDataMap.put(Integer.valueOf(channel), wave);
         }
       }
-
-      // check back in our connection to the database
-      pool.checkin(client);
     }
+  }
 
-    // if a data limit message exists, then throw exception
-    if (exceptionThrown) {
-      throw new Valve3Exception(exceptionMsg);
+  /**
+   * Reduce wave to its envelope over the plot box: the first, minimum, maximum and last sample of
+   * each pixel column, in time order (M4 aggregation). Lines drawn through these samples cover
+   * the same pixels as lines through all samples, so the plot looks the same. Columns without
+   * data get NO_DATA samples, keeping gaps visible.
+   *
+   * @param wave wave with time offset applied
+   * @param columns width of plot box in pixels
+   * @param viewStart start of plotted time window
+   * @param viewEnd end of plotted time window
+   * @return envelope of view with 4 samples per column, or wave if it has no more samples in view
+   */
+  static Wave toEnvelope(Wave wave, int columns, double viewStart, double viewEnd) {
+    double rate = wave.getSamplingRate();
+    double start = wave.getStartTime();
+    int[] buf = wave.buffer;
+    int first = Math.max(0, (int) Math.floor((viewStart - start) * rate));
+    int last = Math.min(buf.length, (int) Math.ceil((viewEnd - start) * rate));
+    if (columns <= 0 || viewEnd <= viewStart || last - first <= ENVELOPE_SAMPLES * columns) {
+      return wave;
+    }
+
+    double columnTime = (viewEnd - viewStart) / columns;
+    int[] env = new int[ENVELOPE_SAMPLES * columns];
+    int to = first;
+    for (int c = 0; c < columns; c++) {
+      int from = to;
+      to = (c == columns - 1) ? last
+          : Math.max(from, Math.min(last,
+              (int) Math.round((viewStart + (c + 1) * columnTime - start) * rate)));
+      int firstIdx = -1;
+      int lastIdx = -1;
+      int minIdx = -1;
+      int maxIdx = -1;
+      for (int i = from; i < to; i++) {
+        int v = buf[i];
+        if (v == Wave.NO_DATA) {
+          continue;
+        }
+        if (firstIdx < 0) {
+          firstIdx = i;
+          minIdx = i;
+          maxIdx = i;
+        } else if (v < buf[minIdx]) {
+          minIdx = i;
+        } else if (v > buf[maxIdx]) {
+          maxIdx = i;
+        }
+        lastIdx = i;
+      }
+      int j = c * ENVELOPE_SAMPLES;
+      if (firstIdx < 0) {
+        Arrays.fill(env, j, j + ENVELOPE_SAMPLES, Wave.NO_DATA);
+        continue;
+      }
+      env[j] = buf[firstIdx];
+      env[j + 1] = buf[Math.min(minIdx, maxIdx)];
+      env[j + 2] = buf[Math.max(minIdx, maxIdx)];
+      env[j + 3] = buf[lastIdx];
     }
+    return new Wave(env, viewStart, ENVELOPE_SAMPLES / columnTime);
   }
 
   /**
@@ -696,7 +743,9 @@ public class WavePlotter extends RawDataPlotter {
     }
 
     // this is a legitimate request so lookup the data from the database and plot it
-    getData(comp);
+    if (!fetchData(comp)) {
+      return;
+    }
     plotData(v3p, comp);
 
     if (!forExport) {
@@ -0,0 +1,30 @@
+package gov.usgs.volcanoes.valve3.result;
+
+/**
+ * Error message of a request refused by admission control; sent with status
+ * 503 and a Retry-After header.
+ */
+public class BusyMessage extends ErrorMessage
+{
+	protected int retryAfter;
+
+	/**
+	 * Constructor
+	 * @param m error message
+	 * @param retryAfter seconds after which the client may retry
+	 */
+	public BusyMessage(String m, int retryAfter)
+	{
+		super(m);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Yield time after which the client may retry
+	 * @return time in seconds
+	 */
+	public int getRetryAfter()
+	{
+		return retryAfter;
+	}
+}
@@ -18,6 +18,15 @@ public class ErrorMessage extends Result
 	{
 		message = m;
 	}
+
+	/**
+	 * Yield error message
+	 * @return message
+	 */
+	public String getMessage()
+	{
+		return message;
+	}
 	
 	/**
 	 * Yield XML representation
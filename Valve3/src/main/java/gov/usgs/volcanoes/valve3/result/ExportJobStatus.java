@@ -0,0 +1,55 @@
+package gov.usgs.volcanoes.valve3.result;
+
+/**
+ * State and progress of an export job, see
+ * {@link gov.usgs.volcanoes.valve3.ExportJobHandler}
+ */
+public class ExportJobStatus extends Result
+{
+	protected String id;
+	protected String state;
+	protected long rows;
+	protected long bytes;
+	protected String message;
+
+	/**
+	 * Constructor
+	 * @param id job ID
+	 * @param state "queued", "running", "done", "failed", "cancelled" or
+	 * "expired" when the file of a done job has been deleted
+	 * @param rows data rows written so far
+	 * @param bytes bytes written so far
+	 * @param u URL of exported file once done, null before
+	 * @param message error message of a failed job, null otherwise
+	 */
+	public ExportJobStatus(String id, String state, long rows, long bytes, String u, String message)
+	{
+		this.id = id;
+		this.state = state;
+		this.rows = rows;
+		this.bytes = bytes;
+		this.url = u;
+		this.message = message;
+	}
+
+	/**
+	 * Yield XML representation
+	 * @return xml representation of export job status
+	 */
+	public String toXML()
+	{
+		StringBuffer sb = new StringBuffer();
+		sb.append("\t<exportJob>\n");
+		sb.append("\t\t<id>" + id + "</id>\n");
+		sb.append("\t\t<state>" + state + "</state>\n");
+		sb.append("\t\t<rows>" + rows + "</rows>\n");
+		sb.append("\t\t<bytes>" + bytes + "</bytes>\n");
+		if (url != null)
+			sb.append("\t\t<url><![CDATA[" + url + "]]></url>\n");
+		// messages are exception text, a CDATA end in them is split
+		if (message != null)
+			sb.append("\t\t<message><![CDATA[" + message.replace("]]>", "]]]]><![CDATA[>") + "]]></message>\n");
+		sb.append("\t</exportJob>\n");
+		return toXML("exportJob", sb.toString());
+	}
+}
@@ -0,0 +1,147 @@
+package gov.usgs.volcanoes.valve3.result;
+
+import gov.usgs.volcanoes.valve3.AdmissionControl;
+import gov.usgs.volcanoes.valve3.Plotter;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.plotter.MergedExport;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Text data export which is written straight to the response instead of
+ * through a file in data/. Keeps the plotters whose exports were prepared,
+ * they write their rows when the result is sent. A multi-source export
+ * keeps its {@link MergedExport} instead. The admission permits of the
+ * export are held until it has been written, or released unwritten.
+ */
+public class ExportStream extends Result
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	protected String filename;
+	protected List<Plotter> plotters;
+	protected MergedExport merged;
+	protected boolean compressible;
+	protected List<AdmissionControl.Permit> permits;
+
+	/**
+	 * Constructor
+	 * @param fn file name offered to the client
+	 * @param p plotters with prepared exports, written in order
+	 * @param pm admission permit of the export, null if none
+	 * @param c whether the export may be sent gzip-compressed
+	 */
+	public ExportStream(String fn, List<Plotter> p, AdmissionControl.Permit pm, boolean c)
+	{
+		filename = fn;
+		plotters = p;
+		permits = (pm == null) ? null : Collections.singletonList(pm);
+		compressible = c;
+	}
+
+	/**
+	 * Constructor
+	 * @param fn file name offered to the client
+	 * @param m prepared multi-source export
+	 * @param pm admission permits of the export, null if none
+	 * @param c whether the export may be sent gzip-compressed
+	 */
+	public ExportStream(String fn, MergedExport m, List<AdmissionControl.Permit> pm, boolean c)
+	{
+		filename = fn;
+		merged = m;
+		permits = pm;
+		compressible = c;
+	}
+
+	/**
+	 * Yield file name for the download
+	 * @return file name
+	 */
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	/**
+	 * Yield if export may be compressed
+	 * @return true if gzip is allowed by configuration
+	 */
+	public boolean isCompressible()
+	{
+		return compressible;
+	}
+
+	/**
+	 * Writes the export to the stream, the stream isn't closed. The
+	 * admission permits are released once done.
+	 * @param os stream to write to
+	 * @param gzip whether to compress output
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream os, boolean gzip) throws IOException
+	{
+		try
+		{
+			GZIPOutputStream zos = null;
+			if (gzip)
+			{
+				zos = new GZIPOutputStream(os, BUFFER_SIZE);
+				os = zos;
+			}
+			Writer out = new BufferedWriter(new OutputStreamWriter(os), BUFFER_SIZE);
+			try
+			{
+				if (merged != null)
+					merged.writeExport(out);
+				else
+					for (Plotter plotter : plotters)
+						plotter.writeExport(out, null);
+			}
+			catch (Valve3Exception e)
+			{
+				throw new IOException(e.getMessage(), e);
+			}
+			out.flush();
+			if (zos != null)
+				zos.finish();
+		}
+		finally
+		{
+			release();
+		}
+	}
+
+	/**
+	 * Drop the prepared export and release its admission permits, for an
+	 * export which is written or won't be
+	 */
+	public void release()
+	{
+		plotters = null;
+		merged = null;
+		if (permits != null)
+			for (AdmissionControl.Permit permit : permits)
+				permit.release();
+	}
+
+	/**
+	 * Yield XML representation
+	 * @return xml representation of ExportStream
+	 */
+	public String toXML()
+	{
+		StringBuffer sb = new StringBuffer();
+		sb.append("\t<rawData>\n");
+		sb.append("\t\t<filename>" + filename + "</filename>\n");
+		sb.append("\t</rawData>\n");
+		return toXML("rawData", sb.toString());
+	}
+}
@@ -15,7 +15,6 @@ import java.io.File;
  */
 public class RawData extends Result
 {
-	protected String url;
 	protected String filename;
 	
 	/**
@@ -39,6 +38,15 @@ public class RawData extends Result
 		return filename;
 	}
 
+	/**
+	 * Yield size of raw data result file
+	 * @return file length
+	 */
+	public long getSize()
+	{
+		return new File(getLocalFilename()).length();
+	}
+
 	/**
 	 * Deletes raw data result file
 	 */
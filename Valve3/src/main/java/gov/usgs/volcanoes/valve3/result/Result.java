@@ -34,6 +34,15 @@ abstract public class Result
 		url = u;
 	}
 	
+	/**
+	 * Yield size of the result's file
+	 * @return bytes used in the file system, 0 if result has no file
+	 */
+	public long getSize()
+	{
+		return 0;
+	}
+	
 	/**
 	 * Deletes generated result
 	 */
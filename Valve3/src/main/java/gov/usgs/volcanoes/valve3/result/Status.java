@@ -0,0 +1,54 @@
+package gov.usgs.volcanoes.valve3.result;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named counters and sizes describing the state of the running
+ * application: caches, stores, pools.
+ */
+public class Status extends Result
+{
+	protected Map<String, Object> values;
+
+	/**
+	 * Default constructor
+	 */
+	public Status()
+	{
+		values = new LinkedHashMap<String, Object>();
+	}
+
+	/**
+	 * Add value, values are listed in order of addition
+	 * @param name value name, for example "plotCache.hits"
+	 * @param value value to report
+	 */
+	public void put(String name, Object value)
+	{
+		values.put(name, value);
+	}
+
+	/**
+	 * Yield reported values
+	 * @return map of value names to values
+	 */
+	public Map<String, Object> getValues()
+	{
+		return values;
+	}
+
+	/**
+	 * Yield XML representation
+	 * @return xml representation of status
+	 */
+	public String toXML()
+	{
+		StringBuffer sb = new StringBuffer();
+		sb.append("\t<status>\n");
+		for (Map.Entry<String, Object> e : values.entrySet())
+			sb.append("\t\t<value name=\"" + e.getKey() + "\">" + e.getValue() + "</value>\n");
+		sb.append("\t</status>\n");
+		return toXML("status", sb.toString());
+	}
+}
@@ -21,6 +21,10 @@ import javax.servlet.http.HttpServletRequest;
  * Result which contains plot and information how
  * (in which format, where, size) store it in the file system
  * 
+ * A plot is first rendered: plotters add components, renderers, data and
+ * supplemental data. Once the image is written, {@link #release()} keeps
+ * only what is needed to send it and describe it in XML, so the render state
+ * isn't held while the plot waits to be deleted or sits in the plot cache.
  * 
  * @author Dan Cervelli
  */
@@ -83,6 +87,10 @@ public class Valve3Plot extends Result
 	
 	protected List<SuppDatum> suppdata;
 	protected List<MetaDatum> metadata;
+
+	protected byte[] image;
+	private boolean stored = false;
+	private String xml;
 	
 	/**
 	 * Constructor
@@ -204,6 +212,53 @@ public class Valve3Plot extends Result
 		return Valve3.getInstance().getApplicationPath() + File.separatorChar + filename;
 	}
 	
+	/**
+	 * Setter for image rendered in memory, it is sent instead of the file
+	 * @param img encoded image
+	 */
+	public void setImage(byte[] img)
+	{
+		image = img;
+	}
+
+	/**
+	 * Getter for image rendered in memory
+	 * @return encoded image, or null if plot was written to file
+	 */
+	public byte[] getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Keep image rendered in memory in the application's image store,
+	 * where it is found by its URL file name
+	 * @param img encoded image
+	 * @return false if the store can't take the image, it should be written to file then
+	 */
+	public boolean storeImage(byte[] img)
+	{
+		if (filename == null)
+			filename = PlotHandler.getRandomFilename(plotFormat.extension);
+		stored = Valve3.getInstance().getImageStore().put(getURLFilename(), img);
+		return stored;
+	}
+
+	/**
+	 * Check if generated image can still be sent or downloaded
+	 * @return false if image was never generated or has been deleted
+	 */
+	public boolean isImageAvailable()
+	{
+		if (image != null)
+			return true;
+		if (filename == null)
+			return false;
+		if (stored)
+			return Valve3.getInstance().getImageStore().get(getURLFilename()) != null;
+		return new File(getLocalFilename()).exists();
+	}
+
 	/**
 	 * Getter for file name
 	 * @return short file name to generate plot image.
@@ -234,7 +289,7 @@ public class Valve3Plot extends Result
 	
 	/**
 	 * Getter for plot
-	 * @return plot
+	 * @return plot, null after {@link #release()}
 	 */
 	public Plot getPlot()
 	{
@@ -331,11 +386,44 @@ public class Valve3Plot extends Result
 	}
 	
 	/**
-	 * Delete file with generated plot image from file system
+	 * Yield size of generated plot image file
+	 * @return file length, 0 if image is in memory or the image store
+	 */
+	public long getSize()
+	{
+		if (filename == null || stored || image != null)
+			return 0;
+		return new File(getLocalFilename()).length();
+	}
+	
+	/**
+	 * Delete generated plot image from file system or image store
 	 */
 	public void delete()
 	{
-		new File(getLocalFilename()).delete();
+		image = null;
+		if (filename == null)
+			return;
+		if (stored)
+			Valve3.getInstance().getImageStore().remove(getURLFilename());
+		else
+			new File(getLocalFilename()).delete();
+	}
+	
+	/**
+	 * End the render phase: the XML representation of XML plots is built now,
+	 * and the plot with its renderers and data, the components and the
+	 * supplemental and meta data are dropped. Components and data can't be
+	 * added afterwards.
+	 */
+	public void release()
+	{
+		if (outputType == OutputType.XML)
+			xml = toXML();
+		plot = null;
+		components = null;
+		suppdata = null;
+		metadata = null;
 	}
 	
 	/**
@@ -344,6 +432,8 @@ public class Valve3Plot extends Result
 	 */
 	public String toXML()
 	{
+		if (xml != null)
+			return xml;
 		StringBuffer sb = new StringBuffer();
 		sb.append("\t<plot>\n");
 		sb.append("\t\t<url><![CDATA[" + url + "]]></url>\n");
@@ -0,0 +1,344 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import gov.usgs.volcanoes.core.legacy.plot.Plot;
+import gov.usgs.volcanoes.valve3.PlotComponent;
+import gov.usgs.volcanoes.valve3.PlotHandler;
+import gov.usgs.volcanoes.valve3.Plotter;
+import gov.usgs.volcanoes.valve3.Valve3;
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+import gov.usgs.volcanoes.valve3.data.DataHandler;
+import gov.usgs.volcanoes.valve3.result.ErrorMessage;
+import gov.usgs.volcanoes.valve3.result.Valve3Plot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Valve3 application running on canned data, shared by the benchmarks.
+ *
+ * <p>Writes valve3.config and data.config to a temporary application directory, starts Valve3 on
+ * it and replaces the metadata cache and channel fetcher of the data handler with canned ones, so
+ * plots and exports run through the production code without a VDX server. The data sources refer
+ * to a vdx which is not configured, so supplemental data and metadata lookups are skipped.
+ */
+public class BenchEnvironment {
+
+  public static final String FIXED = "bench_fixed";
+  public static final String RSAM = "bench_rsam";
+  public static final String WAVE = "bench_wave";
+  public static final int CHANNELS = 4;
+
+  private static final String VDX = "offline";
+  private static final String START = "20200101000000000";
+  private static final String TIME_FORMAT = "yyyyMMddHHmmssSSS";
+  private static final int BOX_HEIGHT = 150;
+
+  private final File appDir;
+  private final Valve3 valve3;
+  private final BenchPlotHandler plotHandler;
+
+  /**
+   * Create application directory and start Valve3 on it.
+   */
+  public BenchEnvironment() throws IOException {
+    appDir = Files.createTempDirectory("valve3-bench").toFile();
+    File configDir = new File(appDir, "WEB-INF" + File.separator + "config");
+    configDir.mkdirs();
+    new File(appDir, "img").mkdirs();
+    File images = new File(appDir, "images.txt");
+    File labels = new File(appDir, "labels.txt");
+    images.createNewFile();
+    labels.createNewFile();
+
+    PrintWriter out = new PrintWriter(new File(configDir, "valve3.config"), "UTF-8");
+    try {
+      out.println("title=Valve3 benchmark");
+      out.println("timeZoneAbbr=UTC");
+      out.println("imageIndex=" + images.getAbsolutePath());
+      out.println("labelIndex=" + labels.getAbsolutePath());
+      out.println("imageMemory=true");
+      // every iteration must render, not hit the cache
+      out.println("plotCache.maxEntries=0");
+    } finally {
+      out.close();
+    }
+
+    out = new PrintWriter(new File(configDir, "data.config"), "UTF-8");
+    try {
+      out.println("vdx=bench");
+      out.println("bench.host=localhost");
+      out.println("bench.port=16022");
+      out.println("section=Benchmark");
+      out.println("Benchmark.sortOrder=1");
+      writeSource(out, FIXED, "Generic Fixed", "GenericFixedPlotter", "genericfixedmenu", 1);
+      writeSource(out, RSAM, "RSAM", "RsamPlotter", "rsammenu", 2);
+      writeSource(out, WAVE, "Wave", "WavePlotter", "wavemenu", 3);
+    } finally {
+      out.close();
+    }
+
+    valve3 = new Valve3();
+    valve3.contextInitialized(new ServletContextEvent(servletContext(appDir.getAbsolutePath())));
+    DataHandler dh = valve3.getDataHandler();
+    dh.setMetadataCache(new CannedMetadataCache(dh, CHANNELS));
+    dh.setChannelFetcher(new CannedChannelFetcher(dh));
+    for (String source : new String[] {FIXED, RSAM, WAVE}) {
+      valve3.putExportConfig(source, valve3.getExportConfig(""));
+    }
+    plotHandler = new BenchPlotHandler(dh);
+  }
+
+  /**
+   * Stop Valve3 and remove application directory.
+   */
+  public void close() {
+    valve3.contextDestroyed(null);
+    delete(appDir);
+  }
+
+  /**
+   * Yield new plotter of a data source, as the handlers do for every request.
+   *
+   * @param source data source name
+   * @return plotter
+   */
+  public Plotter getPlotter(String source) {
+    return valve3.getDataHandler().getDataSourceDescriptor(source).getPlotter();
+  }
+
+  /**
+   * Handle plot request like valve3.jsp does.
+   *
+   * @param request plot request, see {@link #plotRequest}
+   * @return rendered plot
+   * @throws IllegalStateException if the plot failed
+   */
+  public Valve3Plot plot(HttpServletRequest request) {
+    Object result = plotHandler.handle(request);
+    if (result instanceof ErrorMessage) {
+      throw new IllegalStateException(((ErrorMessage) result).toXML());
+    }
+    return (Valve3Plot) result;
+  }
+
+  /**
+   * Run the plotters of a plot request without releasing the plot, so its render state can be
+   * used.
+   *
+   * @param request plot request, see {@link #plotRequest}
+   * @return plot with renderers
+   * @throws IllegalStateException if the plot failed
+   */
+  public Plot render(HttpServletRequest request) {
+    try {
+      List<PlotComponent> components = plotHandler.components(request);
+      Valve3Plot v3p = new Valve3Plot(request, components.size());
+      for (PlotComponent comp : components) {
+        getPlotter(comp.getSource()).plot(v3p, comp);
+      }
+      return v3p.getPlot();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Yield end time of the benchmarked time window.
+   *
+   * @param hours length of time window
+   * @return end time in request format
+   */
+  public static String getEndTime(int hours) {
+    SimpleDateFormat format = new SimpleDateFormat(TIME_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    try {
+      return format.format(new Date(format.parse(START).getTime() + hours * 3600000L));
+    } catch (java.text.ParseException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Build plot component parameters shared by all benchmarks: all channels of the source over
+   * the time window, auto scaled.
+   *
+   * @param hours length of time window
+   * @return component parameters without index suffix
+   */
+  public static Map<String, String> componentParameters(int hours) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    StringBuilder ch = new StringBuilder();
+    for (int i = 1; i <= CHANNELS; i++) {
+      ch.append(i == 1 ? "" : ",").append(i);
+    }
+    params.put("ch", ch.toString());
+    params.put("rk", "1");
+    params.put("st", START);
+    params.put("et", getEndTime(hours));
+    params.put("ysLMin", "Auto");
+    params.put("ysLMax", "Auto");
+    params.put("ysRMin", "Auto");
+    params.put("ysRMax", "Auto");
+    return params;
+  }
+
+  /**
+   * Build export component.
+   *
+   * @param source data source name
+   * @param hours length of time window
+   * @param output export format: csv, xml, json or seed
+   * @return component
+   */
+  public static PlotComponent exportComponent(String source, int hours, String output) {
+    PlotComponent comp = new PlotComponent(source, TimeZone.getTimeZone("UTC"));
+    for (Map.Entry<String, String> e : componentParameters(hours).entrySet()) {
+      comp.put(e.getKey(), e.getValue());
+    }
+    comp.put("o", output);
+    comp.put("outputAll", "T");
+    // matches the empty openDataURL, so the export is allowed
+    comp.put("requestserver", "");
+    return comp;
+  }
+
+  /**
+   * Build plot request of given components.
+   *
+   * @param sources data source of each component
+   * @param hours length of time window
+   * @param combine if components are combined into one plot
+   * @return request
+   */
+  public static HttpServletRequest plotRequest(String[] sources, int hours, boolean combine) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("a", "plot");
+    params.put("o", "png");
+    params.put("tz", "UTC");
+    params.put("w", "1000");
+    int boxes = combine ? 1 : sources.length * CHANNELS;
+    params.put("h", Integer.toString(boxes * BOX_HEIGHT + 60));
+    params.put("n", Integer.toString(sources.length));
+    if (combine) {
+      params.put("combine", "true");
+    }
+    for (int i = 0; i < sources.length; i++) {
+      params.put("src." + i, sources[i]);
+      params.put("w." + i, "850");
+      params.put("h." + i, Integer.toString(BOX_HEIGHT));
+      params.put("x." + i, "75");
+      params.put("y." + i, Integer.toString(20 + (combine ? 0 : i * CHANNELS * BOX_HEIGHT)));
+      Map<String, String> comp = componentParameters(hours);
+      if (combine) {
+        // combined plots show a single channel per component
+        comp.put("ch", Integer.toString(i + 1));
+      }
+      for (Map.Entry<String, String> e : comp.entrySet()) {
+        params.put(e.getKey() + "." + i, e.getValue());
+      }
+    }
+    return request(params);
+  }
+
+  /**
+   * Build request with given parameters; other request methods return null.
+   *
+   * @param params request parameters
+   * @return request
+   */
+  public static HttpServletRequest request(Map<String, String> params) {
+    final Map<String, String[]> parameterMap = new LinkedHashMap<String, String[]>();
+    StringBuilder query = new StringBuilder();
+    for (Map.Entry<String, String> e : params.entrySet()) {
+      parameterMap.put(e.getKey(), new String[] {e.getValue()});
+      query.append(query.length() == 0 ? "" : "&").append(e.getKey()).append('=')
+          .append(e.getValue());
+    }
+    final String queryString = query.toString();
+    return (HttpServletRequest) Proxy.newProxyInstance(BenchEnvironment.class.getClassLoader(),
+        new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getParameter")) {
+              String[] values = parameterMap.get(args[0]);
+              return values == null ? null : values[0];
+            } else if (name.equals("getParameterValues")) {
+              return parameterMap.get(args[0]);
+            } else if (name.equals("getParameterMap")) {
+              return Collections.unmodifiableMap(parameterMap);
+            } else if (name.equals("getParameterNames")) {
+              return Collections.enumeration(parameterMap.keySet());
+            } else if (name.equals("getQueryString")) {
+              return queryString;
+            } else if (name.equals("toString")) {
+              return queryString;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static ServletContext servletContext(final String realPath) {
+    return (ServletContext) Proxy.newProxyInstance(BenchEnvironment.class.getClassLoader(),
+        new Class<?>[] {ServletContext.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getRealPath")) {
+              return realPath;
+            }
+            return null;
+          }
+        });
+  }
+
+  private static void writeSource(PrintWriter out, String source, String name, String plotter,
+      String menu, int sortOrder) {
+    out.println("source=" + source);
+    out.println(source + ".name=" + name);
+    out.println(source + ".vdx=" + VDX);
+    out.println(source + ".vdx.source=" + source);
+    out.println(source + ".plotter=gov.usgs.volcanoes.valve3.plotter." + plotter);
+    out.println(source + ".section=Benchmark");
+    out.println(source + ".menu=" + menu);
+    out.println(source + ".sortOrder=" + sortOrder);
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Plot handler giving access to the parsed components of a request.
+   */
+  private static class BenchPlotHandler extends PlotHandler {
+
+    BenchPlotHandler(DataHandler dh) {
+      super(dh);
+    }
+
+    List<PlotComponent> components(HttpServletRequest request) throws Valve3Exception {
+      return parseRequest(request);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import cern.colt.matrix.DoubleFactory2D;
+
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.data.RSAMData;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.valve3.data.ChannelFetcher;
+import gov.usgs.volcanoes.valve3.data.DataHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Channel fetcher returning synthetic data instead of asking VDX. The data of a request is
+ * generated once and copied for every fetch, since plotters modify the data they get.
+ *
+ * <ul>
+ * <li>bench_fixed: generic data matrix of time, rank and the canned columns, one row per
+ * second</li>
+ * <li>bench_rsam: RSAM data, one value per 10 seconds</li>
+ * <li>bench_wave: wave of 50 samples per second</li>
+ * </ul>
+ */
+public class CannedChannelFetcher extends ChannelFetcher {
+
+  static final double FIXED_INTERVAL = 1;
+  static final double RSAM_INTERVAL = 10;
+  static final double WAVE_RATE = 50;
+
+  private final Map<String, Object> templates;
+
+  /**
+   * Constructor.
+   *
+   * @param dataHandler data handler
+   */
+  public CannedChannelFetcher(DataHandler dataHandler) {
+    super(dataHandler, null);
+    templates = new ConcurrentHashMap<String, Object>();
+  }
+
+  @Override
+  public List<Object> fetch(String vdxClient, Map<String, String> params, String[] channels) {
+    String source = params.get("source");
+    double st = Double.parseDouble(params.get("st"));
+    double et = Double.parseDouble(params.get("et"));
+    List<Object> result = new ArrayList<Object>(channels.length);
+    for (String ch : channels) {
+      String key = source + ":" + ch + ":" + st + ":" + et;
+      Object template = templates.get(key);
+      if (template == null) {
+        template = generate(source, Integer.parseInt(ch), st, et);
+        templates.put(key, template);
+      }
+      result.add(copy(source, template, st));
+    }
+    return result;
+  }
+
+  private static Object generate(String source, int channel, double st, double et) {
+    Random random = new Random(channel);
+    if (BenchEnvironment.WAVE.equals(source)) {
+      int[] samples = new int[(int) ((et - st) * WAVE_RATE)];
+      double phase = random.nextDouble() * Math.PI;
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = (int) (2000 * Math.sin(phase + i * 0.05) + 200 * random.nextGaussian());
+      }
+      return samples;
+    }
+
+    boolean rsam = BenchEnvironment.RSAM.equals(source);
+    double interval = rsam ? RSAM_INTERVAL : FIXED_INTERVAL;
+    int columns = rsam ? 1 : CannedMetadataCache.COLUMNS.length;
+    int rows = (int) ((et - st) / interval);
+    double[][] data = new double[rows][];
+    double[] value = new double[columns];
+    for (int i = 0; i < rows; i++) {
+      double[] row = new double[(rsam ? 1 : 2) + columns];
+      row[0] = st + i * interval;
+      if (!rsam) {
+        row[1] = 1;
+      }
+      for (int c = 0; c < columns; c++) {
+        // random walk, positive for RSAM
+        value[c] += random.nextGaussian();
+        row[row.length - columns + c] = rsam ? 100 + Math.abs(value[c]) : value[c];
+      }
+      data[i] = row;
+    }
+    return data;
+  }
+
+  private static Object copy(String source, Object template, double st) {
+    if (template instanceof int[]) {
+      int[] samples = (int[]) template;
+      return new Wave(Arrays.copyOf(samples, samples.length), st, WAVE_RATE);
+    }
+    double[][] data = (double[][]) template;
+    if (BenchEnvironment.RSAM.equals(source)) {
+      return new RSAMData(Arrays.asList(data));
+    }
+    return new GenericDataMatrix(DoubleFactory2D.dense.make(data));
+  }
+}
@@ -0,0 +1,62 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import gov.usgs.volcanoes.valve3.data.DataHandler;
+import gov.usgs.volcanoes.valve3.data.MetadataCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Metadata cache answering every source with the same canned lists, in the text format VDX
+ * returns them.
+ */
+public class CannedMetadataCache extends MetadataCache {
+
+  /**
+   * Column specs of generic fixed data: two displacement columns on the left axis, temperature on
+   * the right one.
+   */
+  static final String[] COLUMNS = {"1:east:East:mm:T", "2:north:North:mm:T",
+      "3:temp:Temperature:degC:T"};
+
+  private final Map<String, List<String>> lists;
+
+  /**
+   * Constructor.
+   *
+   * @param dataHandler data handler
+   * @param channels number of channels, with ids from 1
+   */
+  public CannedMetadataCache(DataHandler dataHandler, int channels) {
+    super(dataHandler, 0, 0);
+    lists = new HashMap<String, List<String>>();
+
+    List<String> channelList = new ArrayList<String>();
+    for (int i = 1; i <= channels; i++) {
+      // cid:code:name:lon:lat:height:active:azimuth:ctid
+      channelList.add(i + ":BEN" + i + ":Bench " + i + ":-155.28:19.42:1100.0:1:0.0:0");
+    }
+    lists.put("channels", Collections.unmodifiableList(channelList));
+
+    List<String> columnList = new ArrayList<String>();
+    Collections.addAll(columnList, COLUMNS);
+    lists.put("columns", Collections.unmodifiableList(columnList));
+
+    // rid:name:rank:user_default
+    lists.put("ranks", Collections.singletonList("1:Raw Data:1:1"));
+
+    List<String> azimuthList = new ArrayList<String>();
+    for (int i = 1; i <= channels; i++) {
+      azimuthList.add(i + ":0.0");
+    }
+    lists.put("azimuths", Collections.unmodifiableList(azimuthList));
+  }
+
+  @Override
+  public List<String> get(String vdxClient, String vdxSource, String action) {
+    return lists.get(action);
+  }
+}
@@ -0,0 +1,69 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import gov.usgs.volcanoes.valve3.Valve3Exception;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RawDataPlotter.toExport of multi-channel generic fixed data (one ExportData per channel) to
+ * csv, xml and json, and of a wave to miniseed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+  @Param({"csv", "xml", "json", "seed"})
+  public String output;
+
+  @Param({"1", "24"})
+  public int hours;
+
+  private BenchEnvironment env;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    env = new BenchEnvironment();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  /**
+   * Export the time window; the text export is returned, miniseed is written to memory.
+   */
+  @Benchmark
+  public Object toExport() throws Valve3Exception {
+    if (output.equals("seed")) {
+      ByteArrayOutputStream seedOut = new ByteArrayOutputStream();
+      env.getPlotter(BenchEnvironment.WAVE)
+          .toExport(BenchEnvironment.exportComponent(BenchEnvironment.WAVE, hours, output), null,
+              seedOut);
+      return seedOut;
+    }
+    return env.getPlotter(BenchEnvironment.FIXED)
+        .toExport(BenchEnvironment.exportComponent(BenchEnvironment.FIXED, hours, output), null,
+            null);
+  }
+}
@@ -0,0 +1,478 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import cern.colt.matrix.DoubleFactory2D;
+
+import gov.usgs.volcanoes.core.data.BinaryDataSet;
+import gov.usgs.volcanoes.core.data.GenericDataMatrix;
+import gov.usgs.volcanoes.core.data.HelicorderData;
+import gov.usgs.volcanoes.core.data.RSAMData;
+import gov.usgs.volcanoes.core.data.Wave;
+import gov.usgs.volcanoes.vdx.client.VDXClient;
+import gov.usgs.volcanoes.vdx.data.gps.DataPoint;
+import gov.usgs.volcanoes.vdx.data.gps.GpsData;
+import gov.usgs.volcanoes.vdx.data.hypo.Hypocenter;
+import gov.usgs.volcanoes.vdx.data.hypo.HypocenterList;
+import gov.usgs.volcanoes.vdx.data.lightning.Stroke;
+import gov.usgs.volcanoes.vdx.data.lightning.StrokeList;
+import gov.usgs.volcanoes.vdx.data.tilt.TiltData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in for a vdx server, answering VDXClient text and binary requests with synthetic data, so
+ * Valve can be load tested without vdx and MySQL.
+ *
+ * <p>Requests are single lines of {@code key=value;} pairs after a command word. Text results are
+ * sent as an {@code ok: lines=N;} header followed by N lines, binary results as an {@code ok:
+ * bytes=N;type=T;} header followed by the {@link BinaryDataSet#toBinary()} bytes of the data set,
+ * where T is the data type name VDXClient maps to the data set class. Run with {@code check=true}
+ * to verify this framing against the VDXClient on the classpath before pointing Valve at the
+ * server.
+ *
+ * <p>The kind of data of a source is taken from its name: sources whose name contains
+ * "helicorder", "rsam", "wave" (or "winston"), "tilt", "gps", "hypo" or "lightning" get data of
+ * that kind, others get generic fixed data with the columns east, north and temp. Every source has
+ * the same channels, ranks and azimuths.
+ *
+ * <p>Usage: {@code java -cp benchmarks.jar gov.usgs.volcanoes.valve3.bench.FakeVdxServer
+ * [key=value ...]} with keys
+ * <ul>
+ * <li>port: listening port, default 16022</li>
+ * <li>channels: number of channels per source, default 4</li>
+ * <li>interval: seconds between rows of matrix data, default 60</li>
+ * <li>rate: wave samples per second, default 100</li>
+ * <li>events: hypocenters or lightning strokes per day, default 1000</li>
+ * <li>latency: ms to wait before answering a data request, default 0</li>
+ * <li>jitter: random ms added to latency, default 0</li>
+ * <li>check: if true, request metadata and data of every kind of source through a VDXClient,
+ * report which replies it can't read and exit, non-zero if any failed</li>
+ * </ul>
+ */
+public class FakeVdxServer {
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final String[] COLUMNS = {"1:east:East:mm:T", "2:north:North:mm:T",
+      "3:temp:Temperature:degC:F"};
+  private static final String[] TILT_COLUMNS = {"1:east:East:microradians:T",
+      "2:north:North:microradians:T", "3:holeTemp:Hole Temperature:degC:F",
+      "4:boxTemp:Box Temperature:degC:F", "5:instVolt:Instrument Voltage:V:F",
+      "6:gndVolt:Ground Voltage:V:F", "7:rainfall:Rainfall:cm:F"};
+  private static final String[] GPS_COLUMNS = {"1:east:East:m:T", "2:north:North:m:T",
+      "3:up:Up:m:T", "4:length:Length:m:F"};
+  private static final String[] CHECK_SOURCES = {"fake", "fake_helicorder", "fake_rsam",
+      "fake_wave", "fake_tilt", "fake_gps", "fake_hypocenters", "fake_lightning"};
+
+  private final int port;
+  private final int channels;
+  private final double interval;
+  private final double rate;
+  private final int events;
+  private final long latency;
+  private final long jitter;
+
+  /**
+   * Constructor.
+   *
+   * @param config settings, see class description
+   */
+  public FakeVdxServer(Map<String, String> config) {
+    port = intValue(config, "port", 16022);
+    channels = intValue(config, "channels", 4);
+    interval = doubleValue(config, "interval", 60);
+    rate = doubleValue(config, "rate", 100);
+    events = intValue(config, "events", 1000);
+    latency = intValue(config, "latency", 0);
+    jitter = intValue(config, "jitter", 0);
+  }
+
+  /**
+   * Open the listening socket.
+   *
+   * @return server socket bound to the configured port
+   */
+  public ServerSocket bind() throws IOException {
+    ServerSocket server = new ServerSocket(port);
+    System.out.println("Fake VDX listening on port " + port);
+    return server;
+  }
+
+  /**
+   * Accept connections until the process is stopped, each connection is served by its own
+   * thread like VDX does.
+   *
+   * @param server socket from bind, closed when done
+   */
+  public void serve(ServerSocket server) throws IOException {
+    ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      while (true) {
+        final Socket socket = server.accept();
+        executor.execute(new Runnable() {
+          public void run() {
+            handle(socket);
+          }
+        });
+      }
+    } finally {
+      server.close();
+      executor.shutdownNow();
+    }
+  }
+
+  private void handle(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+      String line;
+      while ((line = readLine(in)) != null) {
+        if (line.length() == 0) {
+          continue;
+        }
+        try {
+          respond(parse(line), out);
+        } catch (RuntimeException e) {
+          out.write(("error: " + e + "\n").getBytes(ASCII));
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      // client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void respond(Map<String, String> params, OutputStream out) throws IOException {
+    String action = params.get("action");
+    String source = params.get("source") == null ? "" : params.get("source").toLowerCase();
+    if ("data".equals(action)) {
+      sleep();
+      BinaryDataSet data = generate(source, params);
+      ByteBuffer bb = data.toBinary();
+      byte[] bytes = new byte[bb.limit()];
+      bb.position(0);
+      bb.get(bytes);
+      out.write(("ok: bytes=" + bytes.length + ";type=" + typeName(source) + ";\n")
+          .getBytes(ASCII));
+      out.write(bytes);
+      return;
+    }
+
+    List<String> lines = text(source, action);
+    out.write(("ok: lines=" + lines.size() + ";\n").getBytes(ASCII));
+    for (String s : lines) {
+      out.write((s + "\n").getBytes(ASCII));
+    }
+  }
+
+  private List<String> text(String source, String action) {
+    List<String> lines = new ArrayList<String>();
+    if ("channels".equals(action)) {
+      for (int i = 1; i <= channels; i++) {
+        // cid:code:name:lon:lat:height:active:azimuth:ctid
+        lines.add(i + ":FAKE" + i + ":Fake " + i + ":" + (-155.3 + i * 0.01) + ":"
+            + (19.4 + i * 0.01) + ":1000.0:1:0.0:0");
+      }
+    } else if ("ranks".equals(action)) {
+      // rid:name:rank:user_default
+      lines.add("1:Raw Data:1:1");
+    } else if ("columns".equals(action)) {
+      String[] columns = COLUMNS;
+      if (source.contains("tilt")) {
+        columns = TILT_COLUMNS;
+      } else if (source.contains("gps")) {
+        columns = GPS_COLUMNS;
+      }
+      Collections.addAll(lines, columns);
+    } else if ("azimuths".equals(action)) {
+      for (int i = 1; i <= channels; i++) {
+        lines.add(i + ":0.0");
+      }
+    }
+    // exportinfo, suppdata, metadata and anything else: nothing
+    return lines;
+  }
+
+  /**
+   * Yield VDXClient data type name of the data generated for a source.
+   */
+  private static String typeName(String source) {
+    if (source.contains("helicorder")) {
+      return "helicorder";
+    } else if (source.contains("rsam")) {
+      return "rsam";
+    } else if (source.contains("wave") || source.contains("winston")) {
+      return "wave";
+    } else if (source.contains("tilt")) {
+      return "tilt";
+    } else if (source.contains("gps")) {
+      return "gps";
+    } else if (source.contains("hypo")) {
+      return "hypocenters";
+    } else if (source.contains("lightning")) {
+      return "lightning";
+    }
+    return "genericdatamatrix";
+  }
+
+  private BinaryDataSet generate(String source, Map<String, String> params) {
+    double st = Double.parseDouble(params.get("st"));
+    double et = Double.parseDouble(params.get("et"));
+    if (et > 1e12 || et < st) {
+      // open ended export request
+      et = st + 86400;
+    }
+    String ch = params.get("ch");
+    Random random = new Random((ch == null ? 0 : ch.hashCode()) * 31L + (long) st);
+    String type = typeName(source);
+
+    if (type.equals("wave")) {
+      int[] samples = new int[(int) ((et - st) * rate)];
+      for (int i = 0; i < samples.length; i++) {
+        samples[i] = (int) (1000 * Math.sin(i * 0.05) + 100 * random.nextGaussian());
+      }
+      return new Wave(samples, st, rate);
+    } else if (type.equals("hypocenters")) {
+      List<Hypocenter> hypos = new ArrayList<Hypocenter>();
+      for (int i = 0; i < count(st, et); i++) {
+        hypos.add(new Hypocenter(st + random.nextDouble() * (et - st), i, 1,
+            19.4 + random.nextGaussian() * 0.1, -155.3 + random.nextGaussian() * 0.1,
+            Math.abs(random.nextGaussian() * 10), Math.abs(random.nextGaussian() * 2)));
+      }
+      return new HypocenterList(hypos);
+    } else if (type.equals("lightning")) {
+      List<Stroke> strokes = new ArrayList<Stroke>();
+      for (int i = 0; i < count(st, et); i++) {
+        strokes.add(new Stroke(st + random.nextDouble() * (et - st),
+            19.4 + random.nextGaussian(), -155.3 + random.nextGaussian(),
+            5 + random.nextInt(20), random.nextDouble() * 20));
+      }
+      return new StrokeList(strokes);
+    } else if (type.equals("gps")) {
+      List<DataPoint> points = new ArrayList<DataPoint>();
+      double[] walk = new double[3];
+      for (double t = st; t < et; t += interval) {
+        DataPoint dp = new DataPoint();
+        dp.t = t;
+        dp.r = 1;
+        walk[0] += random.nextGaussian() * 0.001;
+        walk[1] += random.nextGaussian() * 0.001;
+        walk[2] += random.nextGaussian() * 0.002;
+        dp.x = -5465000 + walk[0];
+        dp.y = -2404000 + walk[1];
+        dp.z = 2242000 + walk[2];
+        dp.sxx = dp.syy = dp.szz = 1e-6;
+        points.add(dp);
+      }
+      GpsData data = new GpsData();
+      data.setToList(points);
+      return data;
+    }
+
+    // matrix data: time, then per type columns
+    int columns;
+    boolean ranked;
+    if (type.equals("helicorder")) {
+      columns = 2;
+      ranked = false;
+    } else if (type.equals("rsam")) {
+      columns = 1;
+      ranked = false;
+    } else if (type.equals("tilt")) {
+      columns = TILT_COLUMNS.length;
+      ranked = true;
+    } else {
+      columns = COLUMNS.length;
+      ranked = true;
+    }
+    List<double[]> rows = new ArrayList<double[]>();
+    double[] walk = new double[columns];
+    for (double t = st; t < et; t += interval) {
+      double[] row = new double[(ranked ? 2 : 1) + columns];
+      row[0] = t;
+      if (ranked) {
+        row[1] = 1;
+      }
+      for (int c = 0; c < columns; c++) {
+        walk[c] += random.nextGaussian();
+        row[row.length - columns + c] = walk[c];
+      }
+      if (type.equals("helicorder")) {
+        // min, max
+        row[1] = -Math.abs(row[1]) - 100;
+        row[2] = Math.abs(row[2]) + 100;
+      } else if (type.equals("rsam")) {
+        row[1] = 100 + Math.abs(row[1]);
+      }
+      rows.add(row);
+    }
+    if (type.equals("helicorder")) {
+      return new HelicorderData(rows);
+    } else if (type.equals("rsam")) {
+      return new RSAMData(rows);
+    } else if (type.equals("tilt")) {
+      return new TiltData(rows);
+    }
+    return new GenericDataMatrix(DoubleFactory2D.dense.make(rows.toArray(new double[0][])));
+  }
+
+  /**
+   * Check the reply framing against VDXClient: for a source of every kind, read the channels as
+   * text and an hour of data as binary through a client connected to this server, and compare
+   * with what the server generates. Each source gets its own client, a reply the client misreads
+   * leaves its connection out of step.
+   *
+   * @return number of sources whose replies the client couldn't read
+   */
+  public int check() {
+    int failed = 0;
+    for (String source : CHECK_SOURCES) {
+      String problem = null;
+      VDXClient client = new VDXClient("localhost", port);
+      client.setTimeout(30000);
+      try {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("source", source);
+        params.put("action", "channels");
+        List<String> lines = client.getTextData(params);
+        if (lines == null || lines.size() != channels) {
+          problem = "channels: expected " + channels + " lines, got "
+              + (lines == null ? null : lines.size());
+        } else {
+          params.put("action", "data");
+          params.put("ch", "1");
+          params.put("rk", "1");
+          params.put("st", "0");
+          params.put("et", "3600");
+          Object data = client.getBinaryData(params);
+          Class<?> expected = generate(source, params).getClass();
+          if (data == null || data.getClass() != expected) {
+            problem = "data: expected " + expected.getName() + ", got "
+                + (data == null ? null : data.getClass().getName());
+          }
+        }
+      } catch (Exception e) {
+        problem = e.toString();
+      } finally {
+        client.close();
+      }
+      if (problem == null) {
+        System.out.println(source + " (" + typeName(source) + "): ok");
+      } else {
+        System.out.println(source + " (" + typeName(source) + "): FAILED " + problem);
+        failed++;
+      }
+    }
+    return failed;
+  }
+
+  private int count(double st, double et) {
+    return (int) Math.ceil(events * (et - st) / 86400);
+  }
+
+  private void sleep() {
+    long ms = latency + (jitter > 0 ? (long) (Math.random() * jitter) : 0);
+    if (ms > 0) {
+      try {
+        Thread.sleep(ms);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Parse request line: an optional command word followed by a colon, then key=value pairs
+   * separated by semicolons.
+   */
+  static Map<String, String> parse(String line) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    int colon = line.indexOf(':');
+    int eq = line.indexOf('=');
+    String body = (colon >= 0 && (eq < 0 || colon < eq)) ? line.substring(colon + 1) : line;
+    for (String pair : body.split(";")) {
+      int i = pair.indexOf('=');
+      if (i > 0) {
+        params.put(pair.substring(0, i).trim(), pair.substring(i + 1).trim());
+      }
+    }
+    return params;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c < 0) {
+        return sb.length() == 0 ? null : sb.toString();
+      }
+      if (c != '\r') {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static int intValue(Map<String, String> map, String key, int def) {
+    String s = map.get(key);
+    return s == null ? def : Integer.parseInt(s);
+  }
+
+  private static double doubleValue(Map<String, String> map, String key, double def) {
+    String s = map.get(key);
+    return s == null ? def : Double.parseDouble(s);
+  }
+
+  /**
+   * Start server.
+   *
+   * @param args key=value settings, see class description
+   */
+  public static void main(String[] args) throws IOException {
+    Map<String, String> config = new LinkedHashMap<String, String>();
+    for (String arg : args) {
+      int i = arg.indexOf('=');
+      if (i > 0) {
+        config.put(arg.substring(0, i), arg.substring(i + 1));
+      }
+    }
+    final FakeVdxServer server = new FakeVdxServer(config);
+    final ServerSocket socket = server.bind();
+    if (!"true".equals(config.get("check"))) {
+      server.serve(socket);
+      return;
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          server.serve(socket);
+        } catch (IOException e) {
+          // closed on exit
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    System.exit(server.check() == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,226 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays valve3.jsp request URLs against a running Valve and reports throughput and latency
+ * percentiles per plotter, that is per action and source of the first component.
+ *
+ * <p>Usage: {@code java -cp benchmarks.jar gov.usgs.volcanoes.valve3.bench.LoadDriver urlFile
+ * baseUrl [threads [seconds]]}, where urlFile holds one query string (the part after
+ * "valve3.jsp?") or full URL per line, '#' starts a comment, and baseUrl is the Valve location,
+ * e.g. http://localhost:8080/valve3. Each thread sends the URLs in turn, starting at a different
+ * one, until the time is up. A response is an error if its status isn't 200 or it is an error
+ * message.
+ */
+public class LoadDriver {
+
+  private final List<String> urls;
+  private final String baseUrl;
+  private final Map<String, Stats> stats;
+  private final AtomicInteger next;
+
+  /**
+   * Constructor.
+   *
+   * @param urls request URLs, relative to valve3.jsp or full
+   * @param baseUrl Valve location
+   */
+  public LoadDriver(List<String> urls, String baseUrl) {
+    this.urls = urls;
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    stats = new TreeMap<String, Stats>();
+    next = new AtomicInteger();
+  }
+
+  /**
+   * Run threads for given time and print results.
+   *
+   * @param threads number of concurrent clients
+   * @param seconds duration
+   */
+  public void run(int threads, int seconds) throws InterruptedException {
+    final long end = System.currentTimeMillis() + seconds * 1000L;
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          int i = next.getAndIncrement();
+          while (System.currentTimeMillis() < end) {
+            send(urls.get(i++ % urls.size()));
+          }
+        }
+      }, "load-" + i);
+      workers[i].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    System.out.printf("%-40s %8s %8s %9s %8s %8s %8s %8s%n", "request", "count", "errors",
+        "req/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+    synchronized (stats) {
+      for (Map.Entry<String, Stats> e : stats.entrySet()) {
+        Stats s = e.getValue();
+        long[] t = s.sorted();
+        System.out.printf("%-40s %8d %8d %9.2f %8d %8d %8d %8d%n", e.getKey(), t.length,
+            s.errors, t.length / (double) seconds, percentile(t, 50), percentile(t, 90),
+            percentile(t, 99), t.length == 0 ? 0 : t[t.length - 1]);
+      }
+    }
+  }
+
+  private void send(String url) {
+    String full = url.startsWith("http") ? url : baseUrl + "valve3.jsp?" + url;
+    long start = System.nanoTime();
+    boolean ok = false;
+    try {
+      HttpURLConnection conn = (HttpURLConnection) new URL(full).openConnection();
+      conn.setConnectTimeout(10000);
+      conn.setReadTimeout(300000);
+      int status = conn.getResponseCode();
+      InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+      ok = (status == 200) && !isErrorMessage(in);
+      if (in != null) {
+        in.close();
+      }
+    } catch (IOException e) {
+      ok = false;
+    }
+    long ms = (System.nanoTime() - start) / 1000000;
+
+    String key = label(url);
+    synchronized (stats) {
+      Stats s = stats.get(key);
+      if (s == null) {
+        s = new Stats();
+        stats.put(key, s);
+      }
+      s.add(ms, ok);
+    }
+  }
+
+  /**
+   * Read response, checking if it is the XML of an ErrorMessage.
+   */
+  private static boolean isErrorMessage(InputStream in) throws IOException {
+    if (in == null) {
+      return false;
+    }
+    byte[] buf = new byte[8192];
+    int n = in.read(buf);
+    boolean error = n > 0 && new String(buf, 0, n, "ISO-8859-1").contains("<error>");
+    while (in.read(buf) >= 0) {
+      // drain, so the whole response is part of the latency
+    }
+    return error;
+  }
+
+  /**
+   * Label request by action and source of first component.
+   */
+  private static String label(String url) {
+    String query = url.indexOf('?') >= 0 ? url.substring(url.indexOf('?') + 1) : url;
+    String action = "?";
+    String source = "";
+    for (String pair : query.split("&")) {
+      int i = pair.indexOf('=');
+      if (i < 0) {
+        continue;
+      }
+      String key = pair.substring(0, i);
+      String value;
+      try {
+        value = URLDecoder.decode(pair.substring(i + 1), "UTF-8");
+      } catch (IOException e) {
+        value = pair.substring(i + 1);
+      }
+      if (key.equals("a")) {
+        action = value;
+      } else if (key.equals("src.0") || (key.equals("src") && source.length() == 0)) {
+        source = value;
+      }
+    }
+    return source.length() == 0 ? action : action + " " + source;
+  }
+
+  private static long percentile(long[] sorted, int p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, i)];
+  }
+
+  /**
+   * Latencies and error count of one kind of request.
+   */
+  private static class Stats {
+    long[] times = new long[1024];
+    int count;
+    int errors;
+
+    void add(long ms, boolean ok) {
+      if (count == times.length) {
+        times = Arrays.copyOf(times, count * 2);
+      }
+      times[count++] = ms;
+      if (!ok) {
+        errors++;
+      }
+    }
+
+    long[] sorted() {
+      long[] t = Arrays.copyOf(times, count);
+      Arrays.sort(t);
+      return t;
+    }
+  }
+
+  /**
+   * Run load test.
+   *
+   * @param args url file, base url, optional number of threads (default 8) and seconds (default
+   *     60)
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 2) {
+      System.err.println("Usage: LoadDriver urlFile baseUrl [threads [seconds]]");
+      System.exit(1);
+    }
+    List<String> urls = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          urls.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (urls.isEmpty()) {
+      System.err.println("No URLs in " + args[0]);
+      System.exit(1);
+    }
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+    int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+    new LoadDriver(urls, args[1]).run(threads, seconds);
+  }
+}
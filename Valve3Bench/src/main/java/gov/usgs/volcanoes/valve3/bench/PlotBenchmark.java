@@ -0,0 +1,74 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import gov.usgs.volcanoes.valve3.result.Valve3Plot;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Plot requests through PlotHandler: MatrixRenderer plots of all channels of a generic fixed or
+ * RSAM source, and a CombinedPlot of one channel of each. Every plot is rendered and encoded to
+ * PNG in memory; the plot cache is disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlotBenchmark {
+
+  @Param({BenchEnvironment.FIXED, BenchEnvironment.RSAM})
+  public String source;
+
+  @Param({"1", "24"})
+  public int hours;
+
+  private BenchEnvironment env;
+  private HttpServletRequest plotRequest;
+  private HttpServletRequest combinedRequest;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    env = new BenchEnvironment();
+    plotRequest = BenchEnvironment.plotRequest(new String[] {source}, hours, false);
+    combinedRequest = BenchEnvironment.plotRequest(new String[] {source, source}, hours, true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  /**
+   * Plot all channels of the source.
+   */
+  @Benchmark
+  public Valve3Plot plot() {
+    return env.plot(plotRequest);
+  }
+
+  /**
+   * Plot two channels of the source as a CombinedPlot.
+   */
+  @Benchmark
+  public Valve3Plot combined() {
+    return env.plot(combinedRequest);
+  }
+}
@@ -0,0 +1,83 @@
+package gov.usgs.volcanoes.valve3.bench;
+
+import gov.usgs.volcanoes.core.legacy.plot.Plot;
+import gov.usgs.volcanoes.core.legacy.plot.PlotException;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The two halves of Plotter.renderPNG on a plot set up once: rendering the plot's renderers to
+ * an image, and encoding a rendered image to PNG.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngBenchmark {
+
+  @Param({BenchEnvironment.FIXED, BenchEnvironment.RSAM})
+  public String source;
+
+  private Plot plot;
+  private BufferedImage image;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, PlotException {
+    BenchEnvironment env = new BenchEnvironment();
+    try {
+      plot = env.render(BenchEnvironment.plotRequest(new String[] {source}, 24, false));
+    } finally {
+      env.close();
+    }
+    plot.setBackgroundColor(Color.white);
+    image = render();
+  }
+
+  /**
+   * Render plot to a new image, as renderPNG does.
+   */
+  @Benchmark
+  public BufferedImage render() throws PlotException {
+    BufferedImage img = new BufferedImage(plot.getWidth(), plot.getHeight(),
+        BufferedImage.TYPE_4BYTE_ABGR);
+    Graphics2D g2 = img.createGraphics();
+    try {
+      plot.render(g2);
+    } finally {
+      g2.dispose();
+    }
+    return img;
+  }
+
+  /**
+   * Encode the rendered image.
+   */
+  @Benchmark
+  public byte[] encode() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
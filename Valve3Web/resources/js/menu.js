@@ -1186,7 +1186,8 @@ Menu.prototype.presubmit = function() {
     return false;
   }
   var decimationType = document.getElementById(this.id + "_selector:ds");
-  if(decimationType!=null && decimationType.selectedIndex > 0){
+  if(decimationType!=null && decimationType.selectedIndex > 0
+      && decimationType.options[decimationType.selectedIndex].text != "Auto"){
     var decimationInterval = parseInt(document.getElementById(this.id + '_downSamplingInterval').value);
     if(isNaN(decimationInterval) || decimationInterval<=0){
       alert("Wrong value for decimation interval.");
@@ -42,6 +42,7 @@ create_genericfixedmenu = function(menu) {
         switch(sel.selectedIndex)
         {
           case 0:
+          case 3:
             interval.firstChild.textContent = "Interval:";
             break;
           case 1:
@@ -46,6 +46,7 @@ create_gpsmenu = function(menu) {
         switch(sel.selectedIndex)
         {
           case 0:
+          case 3:
             interval.firstChild.textContent = "Interval:";
             break;
           case 1:
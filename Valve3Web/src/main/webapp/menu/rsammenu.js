@@ -33,6 +33,7 @@ create_rsammenu = function(menu) {
         switch(sel.selectedIndex)
         {
           case 0:
+          case 3:
             interval.firstChild.textContent = "Interval:";
             break;
           case 1:
@@ -38,6 +38,7 @@ create_tensorstrainmenu = function(menu) {
         switch(sel.selectedIndex)
         {
           case 0:
+          case 3:
             interval.firstChild.textContent = "Interval:";
             break;
           case 1: